@@ -0,0 +1,93 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Physical memory kept in a byte array on the Java heap. This is the default,
+ * and the only kind that <tt>Processor.getMemory()</tt> can return.
+ */
+public class ArrayMemory extends PhysicalMemory {
+	/**
+	 * Allocate a new zero-filled physical memory.
+	 * 
+	 * @param size the number of bytes of memory.
+	 */
+	public ArrayMemory(int size) {
+		array = new byte[size];
+	}
+
+	/**
+	 * Return the array backing this memory.
+	 * 
+	 * @return the array backing this memory.
+	 */
+	public byte[] getArray() {
+		return array;
+	}
+
+	public int getSize() {
+		return array.length;
+	}
+
+	public int read(int paddr, int size) {
+		switch (size) {
+		case 1:
+			return array[paddr];
+		case 2:
+			return (short) halfView.get(array, paddr);
+		default:
+			return (int) wordView.get(array, paddr);
+		}
+	}
+
+	public void write(int paddr, int size, int value) {
+		switch (size) {
+		case 1:
+			array[paddr] = (byte) value;
+			break;
+		case 2:
+			halfView.set(array, paddr, (short) value);
+			break;
+		default:
+			wordView.set(array, paddr, value);
+			break;
+		}
+	}
+
+	public int readWord(int paddr) {
+		return (int) wordView.get(array, paddr);
+	}
+
+	public void read(int paddr, byte[] data, int offset, int length) {
+		System.arraycopy(array, paddr, data, offset, length);
+	}
+
+	public void write(int paddr, byte[] data, int offset, int length) {
+		System.arraycopy(data, offset, array, paddr, length);
+	}
+
+	public void fill(int paddr, int length, byte value) {
+		Arrays.fill(array, paddr, paddr + length, value);
+	}
+
+	public int readFile(OpenFile file, int pos, int paddr, int length) {
+		return file.read(pos, array, paddr, length);
+	}
+
+	public int writeFile(OpenFile file, int pos, int paddr, int length) {
+		return file.write(pos, array, paddr, length);
+	}
+
+	private byte[] array;
+
+	private static final VarHandle halfView = MethodHandles
+			.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle wordView = MethodHandles
+			.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+}
@@ -0,0 +1,154 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Physical memory kept outside the Java heap, either in a direct buffer or in
+ * a file mapped into memory. Memory of this kind is not scanned or copied by
+ * the garbage collector, and a mapped file keeps its contents after Nachos
+ * exits.
+ */
+public class BufferMemory extends PhysicalMemory {
+	/**
+	 * Allocate a new zero-filled physical memory in a direct buffer.
+	 * 
+	 * @param size the number of bytes of memory.
+	 */
+	public BufferMemory(int size) {
+		this(ByteBuffer.allocateDirect(size));
+	}
+
+	/**
+	 * Allocate a new physical memory backed by the specified file, which is
+	 * created or extended to the required size.
+	 * 
+	 * @param size the number of bytes of memory.
+	 * @param fileName the name of the file to map.
+	 */
+	public BufferMemory(int size, String fileName) {
+		this(map(size, fileName));
+	}
+
+	private BufferMemory(ByteBuffer buffer) {
+		this.buffer = buffer;
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static ByteBuffer map(int size, String fileName) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+			try {
+				file.setLength(size);
+				return file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, size);
+			}
+			finally {
+				// the mapping stays valid after the file is closed
+				file.close();
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not map physical memory file "
+					+ fileName + ": " + e);
+			return null;
+		}
+	}
+
+	public int getSize() {
+		return buffer.capacity();
+	}
+
+	public int read(int paddr, int size) {
+		switch (size) {
+		case 1:
+			return buffer.get(paddr);
+		case 2:
+			return (short) halfView.get(buffer, paddr);
+		default:
+			return (int) wordView.get(buffer, paddr);
+		}
+	}
+
+	public void write(int paddr, int size, int value) {
+		switch (size) {
+		case 1:
+			buffer.put(paddr, (byte) value);
+			break;
+		case 2:
+			halfView.set(buffer, paddr, (short) value);
+			break;
+		default:
+			wordView.set(buffer, paddr, value);
+			break;
+		}
+	}
+
+	public int readWord(int paddr) {
+		return (int) wordView.get(buffer, paddr);
+	}
+
+	public void read(int paddr, byte[] data, int offset, int length) {
+		buffer.get(paddr, data, offset, length);
+	}
+
+	public void write(int paddr, byte[] data, int offset, int length) {
+		buffer.put(paddr, data, offset, length);
+	}
+
+	public void fill(int paddr, int length, byte value) {
+		for (int i = 0; i < length; i++)
+			buffer.put(paddr + i, value);
+	}
+
+	public int readFile(OpenFile file, int pos, int paddr, int length) {
+		byte[] staging = takeStaging(length);
+		int amount = file.read(pos, staging, 0, length);
+		if (amount > 0)
+			buffer.put(paddr, staging, 0, amount);
+		spareStaging.add(staging);
+
+		return amount;
+	}
+
+	public int writeFile(OpenFile file, int pos, int paddr, int length) {
+		byte[] staging = takeStaging(length);
+		buffer.get(paddr, staging, 0, length);
+		int amount = file.write(pos, staging, 0, length);
+		spareStaging.add(staging);
+
+		return amount;
+	}
+
+	/**
+	 * Take a staging array of at least <i>length</i> bytes. A file transfer
+	 * may block, and another thread may start one meanwhile, so each
+	 * transfer holds its own array until it is done.
+	 */
+	private byte[] takeStaging(int length) {
+		for (int i = spareStaging.size() - 1; i >= 0; i--) {
+			if (spareStaging.get(i).length >= length)
+				return spareStaging.remove(i);
+		}
+
+		return new byte[Math.max(length, Processor.pageSize)];
+	}
+
+	private ByteBuffer buffer;
+
+	private ArrayList<byte[]> spareStaging = new ArrayList<byte[]>();
+
+	private static final VarHandle halfView = MethodHandles
+			.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle wordView = MethodHandles
+			.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+}
@@ -0,0 +1,153 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * One level of a simulated set-associative, write-back, write-allocate cache.
+ * Only tags are modelled, not data; memory always holds the current value of
+ * every byte.
+ *
+ * <p>
+ * All state is kept in primitive arrays, so an access never allocates.
+ */
+final class Cache {
+	/**
+	 * Allocate a new cache. The size, associativity and line size must all
+	 * be powers of two.
+	 *
+	 * @param name the name used when printing statistics.
+	 * @param size the capacity in bytes.
+	 * @param associativity the number of lines in each set.
+	 * @param lineSize the number of bytes in each line.
+	 * @param policy <tt>lru</tt>, <tt>fifo</tt> or <tt>random</tt>.
+	 */
+	Cache(String name, int size, int associativity, int lineSize,
+			String policy) {
+		Lib.assertTrue(isPowerOfTwo(size) && isPowerOfTwo(associativity)
+				&& isPowerOfTwo(lineSize) && size >= associativity * lineSize,
+				"bad " + name + " cache geometry " + size + "/"
+						+ associativity + "/" + lineSize);
+
+		if (policy.equals("lru"))
+			this.policy = policyLRU;
+		else if (policy.equals("fifo"))
+			this.policy = policyFIFO;
+		else if (policy.equals("random"))
+			this.policy = policyRandom;
+		else
+			Lib.assertNotReached("unknown " + name + " cache policy " + policy);
+
+		this.name = name;
+		this.associativity = associativity;
+
+		lineShift = Integer.numberOfTrailingZeros(lineSize);
+		setMask = size / lineSize / associativity - 1;
+
+		int lines = size / lineSize;
+		tags = new int[lines];
+		stamps = new long[lines];
+		dirty = new boolean[lines];
+
+		for (int i = 0; i < lines; i++)
+			tags[i] = -1;
+	}
+
+	private static boolean isPowerOfTwo(int n) {
+		return n > 0 && (n & (n - 1)) == 0;
+	}
+
+	/**
+	 * Look up the line containing a physical address, filling it on a miss.
+	 * A write marks the line dirty. A dirty line evicted by a fill is counted
+	 * as a writeback, and its address is left in <tt>evicted</tt>.
+	 *
+	 * @param paddr the physical address accessed.
+	 * @param write <tt>true</tt> if the access is a write.
+	 * @return <tt>true</tt> if the access hit.
+	 */
+	boolean access(int paddr, boolean write) {
+		int line = paddr >>> lineShift;
+		int first = (line & setMask) * associativity;
+		int end = first + associativity;
+
+		accesses++;
+
+		for (int i = first; i < end; i++) {
+			if (tags[i] == line) {
+				if (policy == policyLRU)
+					stamps[i] = ++clock;
+				if (write)
+					dirty[i] = true;
+				return true;
+			}
+		}
+
+		misses++;
+
+		int victim = first;
+		if (policy == policyRandom) {
+			random ^= random << 13;
+			random ^= random >>> 17;
+			random ^= random << 5;
+			victim = first + (random & (associativity - 1));
+		}
+
+		// always prefer an empty line
+		for (int i = first; i < end; i++) {
+			if (tags[i] == -1) {
+				victim = i;
+				break;
+			}
+			if (policy != policyRandom && stamps[i] < stamps[victim])
+				victim = i;
+		}
+
+		evicted = -1;
+		if (tags[victim] != -1 && dirty[victim]) {
+			evicted = tags[victim] << lineShift;
+			writebacks++;
+		}
+
+		tags[victim] = line;
+		stamps[victim] = ++clock;
+		dirty[victim] = write;
+
+		return false;
+	}
+
+	/** The name used when printing statistics. */
+	final String name;
+
+	/** The number of accesses so far. */
+	long accesses = 0;
+
+	/** The number of accesses so far that missed. */
+	long misses = 0;
+
+	/** The number of dirty lines evicted so far. */
+	long writebacks = 0;
+
+	/**
+	 * The physical address of the dirty line evicted by the last access, or
+	 * -1 if it did not evict one.
+	 */
+	int evicted = -1;
+
+	private int policy;
+
+	private int associativity, lineShift, setMask;
+
+	/** The line address held by each line, or -1 if empty. */
+	private int[] tags;
+
+	/** The last use (LRU) or the fill time (FIFO) of each line. */
+	private long[] stamps;
+
+	private boolean[] dirty;
+
+	private long clock = 0;
+
+	private int random = 0x2545F491;
+
+	private static final int policyLRU = 0, policyFIFO = 1, policyRandom = 2;
+}
@@ -0,0 +1,205 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+
+/**
+ * A simulated cache hierarchy: split L1 instruction and data caches, backed
+ * by an optional unified L2 cache. Every access the processor makes to
+ * physical memory is passed through it, and each access returns the number
+ * of extra ticks the instruction stalls for. An L1 hit costs nothing beyond
+ * the normal instruction tick.
+ *
+ * <p>
+ * Hits and misses are counted for the whole machine, and separately for each
+ * address space identifier set with <tt>Processor.setASID()</tt>.
+ *
+ * <p>
+ * The geometry of each cache is read from the <tt>Cache.L1I.*</tt>,
+ * <tt>Cache.L1D.*</tt> and <tt>Cache.L2.*</tt> keys (<tt>size</tt>,
+ * <tt>associativity</tt>, <tt>lineSize</tt>, <tt>policy</tt>). Setting
+ * <tt>Cache.L2.size</tt> to 0 removes the L2 cache.
+ */
+final class CacheHierarchy {
+	/**
+	 * Allocate a new cache hierarchy, configured from the Nachos
+	 * configuration file.
+	 */
+	CacheHierarchy() {
+		caches[levelL1I] = level("L1I", 8192, 2, 32);
+		caches[levelL1D] = level("L1D", 8192, 2, 32);
+		caches[levelL2] = level("L2", 65536, 8, 64);
+		Lib.assertTrue(caches[levelL1I] != null && caches[levelL1D] != null,
+				"the L1 caches cannot be removed");
+
+		l2HitTicks = Config.getInteger("Cache.L2.hitTicks", 10);
+		memoryTicks = Config.getInteger("Cache.memoryTicks", 100);
+		Lib.assertTrue(l2HitTicks >= 0 && memoryTicks >= 0);
+
+		l2 = caches[levelL2];
+	}
+
+	private static Cache level(String name, int size, int associativity,
+			int lineSize) {
+		String prefix = "Cache." + name + ".";
+
+		size = Config.getInteger(prefix + "size", size);
+		if (size == 0)
+			return null;
+
+		return new Cache(name, size, Config.getInteger(prefix
+				+ "associativity", associativity), Config.getInteger(prefix
+				+ "lineSize", lineSize), Config.getString(prefix + "policy",
+				"lru"));
+	}
+
+	/**
+	 * Account for the fetch of an instruction.
+	 *
+	 * @param paddr the physical address of the instruction.
+	 * @return the number of ticks the fetch stalls for.
+	 */
+	int fetch(int paddr) {
+		return access(levelL1I, paddr, false);
+	}
+
+	/**
+	 * Account for a load from data memory.
+	 *
+	 * @param paddr the physical address loaded from.
+	 * @return the number of ticks the load stalls for.
+	 */
+	int load(int paddr) {
+		return access(levelL1D, paddr, false);
+	}
+
+	/**
+	 * Account for a store to data memory.
+	 *
+	 * @param paddr the physical address stored to.
+	 * @return the number of ticks the store stalls for.
+	 */
+	int store(int paddr) {
+		return access(levelL1D, paddr, true);
+	}
+
+	private int access(int level, int paddr, boolean write) {
+		Cache l1 = caches[level];
+		long[] counts = ownerCounts;
+		int base = ownerBase;
+
+		counts[base + level * 2]++;
+		if (l1.access(paddr, write))
+			return 0;
+		counts[base + level * 2 + 1]++;
+
+		int stall;
+		if (l2 == null) {
+			stall = memoryTicks;
+		}
+		else {
+			// write the evicted line back first; the write is buffered, so it
+			// does not stall
+			if (l1.evicted != -1) {
+				counts[base + levelL2 * 2]++;
+				if (!l2.access(l1.evicted, true))
+					counts[base + levelL2 * 2 + 1]++;
+			}
+
+			counts[base + levelL2 * 2]++;
+			if (l2.access(paddr, false)) {
+				stall = l2HitTicks;
+			}
+			else {
+				counts[base + levelL2 * 2 + 1]++;
+				stall = memoryTicks;
+			}
+		}
+
+		counts[base + stallIndex] += stall;
+		stallTicks += stall;
+		return stall;
+	}
+
+	/**
+	 * Attribute the accesses that follow to a different address space.
+	 *
+	 * @param asid the address space identifier.
+	 */
+	void setOwner(int asid) {
+		int base = asid * ownerStride;
+
+		if (base + ownerStride > ownerCounts.length)
+			ownerCounts = Arrays.copyOf(ownerCounts, Math.max(base
+					+ ownerStride, ownerCounts.length * 2));
+
+		ownerBase = base;
+	}
+
+	/**
+	 * Print the hit and miss counts of each cache, for the whole machine and
+	 * then for each address space that made any accesses.
+	 */
+	void print() {
+		System.out.print("Cache:");
+		for (int level = 0; level < numLevels; level++) {
+			Cache cache = caches[level];
+			if (cache != null)
+				System.out.print(" " + cache.name + " "
+						+ rates(cache.accesses, cache.misses) + ",");
+		}
+		System.out.println(" writebacks "
+				+ (caches[levelL1D].writebacks + (l2 != null ? l2.writebacks
+						: 0)) + ", stall ticks " + stallTicks);
+
+		for (int base = 0; base < ownerCounts.length; base += ownerStride) {
+			if (ownerCounts[base + levelL1I * 2] == 0
+					&& ownerCounts[base + levelL1D * 2] == 0)
+				continue;
+
+			System.out.print("Cache [asid " + base / ownerStride + "]:");
+			for (int level = 0; level < numLevels; level++) {
+				if (caches[level] != null)
+					System.out.print(" "
+							+ caches[level].name
+							+ " "
+							+ rates(ownerCounts[base + level * 2],
+									ownerCounts[base + level * 2 + 1]) + ",");
+			}
+			System.out.println(" stall ticks "
+					+ ownerCounts[base + stallIndex]);
+		}
+	}
+
+	private static String rates(long accesses, long misses) {
+		long permille = (accesses == 0) ? 0 : misses * 1000 / accesses;
+
+		return "hits " + (accesses - misses) + " misses " + misses + " ("
+				+ permille / 10 + "." + permille % 10 + "%)";
+	}
+
+	/** The total number of ticks all accesses have stalled for. */
+	long stallTicks = 0;
+
+	private Cache[] caches = new Cache[numLevels];
+
+	private Cache l2;
+
+	private int l2HitTicks, memoryTicks;
+
+	/**
+	 * Per address space counts: accesses and misses for each level, then
+	 * stall ticks.
+	 */
+	private long[] ownerCounts = new long[ownerStride];
+
+	/** The index of the current address space's counts. */
+	private int ownerBase = 0;
+
+	private static final int levelL1I = 0, levelL1D = 1, levelL2 = 2,
+			numLevels = 3;
+
+	private static final int stallIndex = numLevels * 2,
+			ownerStride = stallIndex + 1;
+}
@@ -3,6 +3,8 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * A COFF (common object file format) loader.
@@ -60,6 +62,7 @@ public class Coff {
 			int numSections = Lib.bytesToUnsignedShort(headers, 2);
 			int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
 			int flags = Lib.bytesToUnsignedShort(headers, 18);
+			symbolTableOffset = Lib.bytesToInt(headers, 8);
 			entryPoint = Lib.bytesToInt(headers, headerLength + 16);
 
 			if (magic != 0x0162) {
@@ -127,6 +130,113 @@ public class Coff {
 		return entryPoint;
 	}
 
+	/**
+	 * Return the procedures listed in the symbol table of the executable,
+	 * sorted by address. Only the MIPS ECOFF symbol table is understood; an
+	 * executable without one has no procedures. The table is read from the
+	 * executable the first time this is called.
+	 * 
+	 * @return the procedures in the executable, possibly none.
+	 */
+	public CoffProcedure[] getProcedures() {
+		if (procedures == null) {
+			try {
+				procedures = readProcedures();
+			}
+			catch (ArrayIndexOutOfBoundsException e) {
+				Lib.debug(dbgCoff, "\tmalformed symbol table");
+				procedures = new CoffProcedure[0];
+			}
+		}
+
+		return procedures;
+	}
+
+	private CoffProcedure[] readProcedures() {
+		if (file == null || symbolTableOffset <= 0)
+			return new CoffProcedure[0];
+
+		byte[] header = new byte[symbolicHeaderLength];
+		if (file.read(symbolTableOffset, header, 0, header.length) != header.length
+				|| Lib.bytesToUnsignedShort(header, 0) != symbolicHeaderMagic) {
+			Lib.debug(dbgCoff, "\tno symbol table");
+			return new CoffProcedure[0];
+		}
+
+		int numProcedures = Lib.bytesToInt(header, 24);
+		int procedureOffset = Lib.bytesToInt(header, 28);
+		int numSymbols = Lib.bytesToInt(header, 32);
+		int symbolOffset = Lib.bytesToInt(header, 36);
+		int stringsLength = Lib.bytesToInt(header, 56);
+		int stringsOffset = Lib.bytesToInt(header, 60);
+		int numFiles = Lib.bytesToInt(header, 72);
+		int fileOffset = Lib.bytesToInt(header, 76);
+
+		// read the tables we need in one go; they are next to each other
+		int start = Math.min(Math.min(procedureOffset, symbolOffset), Math
+				.min(stringsOffset, fileOffset));
+		int end = Math.max(Math.max(procedureOffset + numProcedures
+				* procedureLength, symbolOffset + numSymbols * symbolLength),
+				Math.max(stringsOffset + stringsLength, fileOffset + numFiles
+						* fileLength));
+
+		if (numProcedures <= 0 || start < 0 || end > file.length())
+			return new CoffProcedure[0];
+
+		byte[] tables = new byte[end - start];
+		if (file.read(start, tables, 0, tables.length) != tables.length)
+			return new CoffProcedure[0];
+
+		procedureOffset -= start;
+		symbolOffset -= start;
+		stringsOffset -= start;
+		fileOffset -= start;
+
+		CoffProcedure[] procedures = new CoffProcedure[numProcedures];
+		int count = 0;
+
+		// each file descriptor owns a run of procedures, symbols and strings
+		for (int f = 0; f < numFiles; f++) {
+			int fd = fileOffset + f * fileLength;
+			int stringBase = stringsOffset + Lib.bytesToInt(tables, fd + 8);
+			int symbolBase = Lib.bytesToInt(tables, fd + 16);
+			int firstProcedure = Lib.bytesToUnsignedShort(tables, fd + 40);
+			int fileProcedures = Lib.bytesToShort(tables, fd + 42);
+
+			for (int p = firstProcedure; p < firstProcedure + fileProcedures; p++) {
+				int pd = procedureOffset + p * procedureLength;
+				int symbol = symbolOffset + (symbolBase + Lib.bytesToInt(tables,
+						pd + 4)) * symbolLength;
+
+				int nameOffset = stringBase + Lib.bytesToInt(tables, symbol);
+				String name = Lib.bytesToString(tables, nameOffset,
+						tables.length - nameOffset);
+				int address = Lib.bytesToInt(tables, symbol + 4);
+
+				// the saved registers are stored down from the top of the
+				// frame, highest numbered (so $ra) first
+				int registerMask = Lib.bytesToInt(tables, pd + 12);
+				int registerOffset = Lib.bytesToInt(tables, pd + 16);
+				int frameSize = Lib.bytesToInt(tables, pd + 32);
+				int frameRegister = Lib.bytesToShort(tables, pd + 36);
+
+				if (count < procedures.length)
+					procedures[count++] = new CoffProcedure(name, address,
+							frameSize, frameRegister, registerMask < 0,
+							registerOffset);
+			}
+		}
+
+		procedures = Arrays.copyOf(procedures, count);
+		Arrays.sort(procedures, new Comparator<CoffProcedure>() {
+			public int compare(CoffProcedure a, CoffProcedure b) {
+				return Integer.compare(a.getAddress(), b.getAddress());
+			}
+		});
+
+		return procedures;
+	}
+
 	/**
 	 * Close the executable file and release any resources allocated by this
 	 * loader.
@@ -145,9 +255,21 @@ public class Coff {
 	/** The sections in this COFF executable. */
 	protected CoffSection sections[];
 
+	/** The file offset of the ECOFF symbolic header, or 0 if none. */
+	private int symbolTableOffset = 0;
+
+	/** The procedures in the symbol table, once read. */
+	private CoffProcedure[] procedures = null;
+
 	private static final int headerLength = 20;
 
 	private static final int aoutHeaderLength = 28;
 
+	private static final int symbolicHeaderLength = 96,
+			symbolicHeaderMagic = 0x7009;
+
+	private static final int procedureLength = 52, symbolLength = 12,
+			fileLength = 72;
+
 	private static final char dbgCoff = 'c';
 }
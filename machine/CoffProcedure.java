@@ -0,0 +1,99 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A <tt>CoffProcedure</tt> describes a single procedure listed in the symbol
+ * table of a COFF executable: its name, its address, and how it lays out its
+ * stack frame.
+ */
+public class CoffProcedure {
+	/**
+	 * Allocate a new COFF procedure with the specified parameters.
+	 *
+	 * @param name the name of this procedure.
+	 * @param address the virtual address of the first instruction.
+	 * @param frameSize the number of bytes the procedure allocates on the
+	 * stack.
+	 * @param frameRegister the register the frame is addressed from, normally
+	 * <tt>Processor.regSP</tt>.
+	 * @param savesReturnAddress <tt>true</tt> if the procedure saves
+	 * <tt>$ra</tt> in its frame.
+	 * @param returnAddressOffset the offset of the saved <tt>$ra</tt> from
+	 * the top of the frame.
+	 */
+	public CoffProcedure(String name, int address, int frameSize,
+			int frameRegister, boolean savesReturnAddress,
+			int returnAddressOffset) {
+		this.name = name;
+		this.address = address;
+		this.frameSize = frameSize;
+		this.frameRegister = frameRegister;
+		this.savesReturnAddress = savesReturnAddress;
+		this.returnAddressOffset = returnAddressOffset;
+	}
+
+	/**
+	 * Return the name of this procedure.
+	 *
+	 * @return the name of this procedure.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the virtual address of the first instruction of this procedure.
+	 *
+	 * @return the address of this procedure.
+	 */
+	public int getAddress() {
+		return address;
+	}
+
+	/**
+	 * Return the number of bytes this procedure allocates on the stack. The
+	 * top of the frame is the stack pointer plus this amount, once the
+	 * prologue has run.
+	 *
+	 * @return the size of the stack frame.
+	 */
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	/**
+	 * Return the register the stack frame is addressed from.
+	 *
+	 * @return the frame register.
+	 */
+	public int getFrameRegister() {
+		return frameRegister;
+	}
+
+	/**
+	 * Test whether this procedure saves the return address in its frame.
+	 * Leaf procedures usually leave it in <tt>$ra</tt>.
+	 *
+	 * @return <tt>true</tt> if <tt>$ra</tt> is saved in the frame.
+	 */
+	public boolean savesReturnAddress() {
+		return savesReturnAddress;
+	}
+
+	/**
+	 * Return the offset of the saved return address from the top of the
+	 * frame. Only meaningful if <tt>savesReturnAddress()</tt>.
+	 *
+	 * @return the offset of the saved <tt>$ra</tt>.
+	 */
+	public int getReturnAddressOffset() {
+		return returnAddressOffset;
+	}
+
+	private String name;
+
+	private int address, frameSize, frameRegister, returnAddressOffset;
+
+	private boolean savesReturnAddress;
+}
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +37,12 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
  * fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * Devices reschedule their interrupts constantly, so the pending interrupts
+ * are kept in a binary heap of primitive arrays rather than a collection of
+ * objects, and scheduling one does not allocate. Interrupts due at the same
+ * time are invoked in the order they were scheduled.
  */
 public final class Interrupt {
 	/**
@@ -52,7 +57,9 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+
+		for (int i = initialCapacity - 1; i >= 0; i--)
+			freeHandlers[numFreeHandlers++] = i;
 	}
 
 	/**
@@ -101,6 +108,42 @@ public final class Interrupt {
 		return oldStatus;
 	}
 
+	/**
+	 * Wait for the next interrupt, as a processor with nothing to run would.
+	 * Instead of ticking until it is due, the simulated time jumps straight
+	 * to it, and the skipped ticks are counted as idle time. The due
+	 * interrupt handlers are then invoked, as they would be by a tick.
+	 * Interrupts must be enabled.
+	 * 
+	 * <p>
+	 * The kernel should only call this when no thread is ready to run, since
+	 * nothing runs until the jump is over. If no interrupts are pending, this
+	 * returns at once.
+	 */
+	public void idle() {
+		Lib.assertTrue(enabled());
+
+		if (numPending == 0)
+			return;
+
+		Stats stats = privilege.stats;
+		long skipped = pendingTimes[0] - stats.totalTicks;
+
+		if (skipped > 0) {
+			stats.idleTicks += skipped;
+			stats.totalTicks += skipped;
+
+			if (Lib.test(dbgInt))
+				System.out.println("== Idle until " + stats.totalTicks + " ==");
+		}
+
+		inKernelMode = true;
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
 	/**
 	 * Tests whether interrupts are enabled.
 	 * 
@@ -123,17 +166,182 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			Lib.debug(dbgInt, "Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+		if (numPending == pendingTimes.length) {
+			int capacity = numPending * 2;
+			pendingTimes = Arrays.copyOf(pendingTimes, capacity);
+			pendingSequences = Arrays.copyOf(pendingSequences, capacity);
+			pendingHandlers = Arrays.copyOf(pendingHandlers, capacity);
+		}
+
+		int handlerIndex = acquireHandler(type, handler);
+		long sequence = numPendingInterruptsCreated++;
+
+		// sift the hole up from the new leaf until the new interrupt fits
+		int hole = numPending++;
+		while (hole > 0) {
+			int parent = (hole - 1) >>> 1;
+			if (!before(time, sequence, parent))
+				break;
+
+			move(parent, hole);
+			hole = parent;
+		}
+
+		pendingTimes[hole] = time;
+		pendingSequences[hole] = sequence;
+		pendingHandlers[hole] = handlerIndex;
+	}
+
+	private long nextDueTime() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return pendingTimes[0];
+	}
+
+	/**
+	 * Remove the earliest pending interrupt from the heap, and return the
+	 * index of its handler.
+	 */
+	private int removeFirst() {
+		int handlerIndex = pendingHandlers[0];
+
+		int last = --numPending;
+		long time = pendingTimes[last];
+		long sequence = pendingSequences[last];
+
+		// sift the hole down from the root until the last interrupt fits
+		int hole = 0;
+		while (true) {
+			int child = hole * 2 + 1;
+			if (child >= last)
+				break;
+
+			if (child + 1 < last
+					&& before(pendingTimes[child + 1],
+							pendingSequences[child + 1], child))
+				child++;
+
+			if (!before(pendingTimes[child], pendingSequences[child], last))
+				break;
+
+			move(child, hole);
+			hole = child;
+		}
+
+		pendingTimes[hole] = time;
+		pendingSequences[hole] = sequence;
+		pendingHandlers[hole] = pendingHandlers[last];
+
+		return handlerIndex;
+	}
+
+	/**
+	 * Test whether an interrupt at the specified time and sequence number is
+	 * due before the one in the specified heap slot.
+	 */
+	private boolean before(long time, long sequence, int slot) {
+		return time < pendingTimes[slot]
+				|| (time == pendingTimes[slot] && sequence < pendingSequences[slot]);
+	}
 
-		pending.add(toOccur);
+	private void move(int from, int to) {
+		pendingTimes[to] = pendingTimes[from];
+		pendingSequences[to] = pendingSequences[from];
+		pendingHandlers[to] = pendingHandlers[from];
+	}
+
+	/**
+	 * Return the index of a handler and its type, registering it if no
+	 * pending interrupt uses it yet. Devices pass the same handler every time,
+	 * so this normally finds an existing index.
+	 */
+	private int acquireHandler(String type, Runnable handler) {
+		Integer known = handlerIndices.get(handler);
+		int index;
+
+		if (known != null && types[known].equals(type)) {
+			index = known;
+		}
+		else {
+			if (numFreeHandlers > 0) {
+				index = freeHandlers[--numFreeHandlers];
+			}
+			else {
+				index = handlers.length;
+				handlers = Arrays.copyOf(handlers, index * 2);
+				types = Arrays.copyOf(types, index * 2);
+				handlerReferences = Arrays.copyOf(handlerReferences, index * 2);
+				freeHandlers = Arrays.copyOf(freeHandlers, index * 2);
+				for (int i = index * 2 - 1; i > index; i--)
+					freeHandlers[numFreeHandlers++] = i;
+			}
+
+			handlers[index] = handler;
+			types[index] = type;
+			if (known == null)
+				handlerIndices.put(handler, index);
+		}
+
+		handlerReferences[index]++;
+		return index;
+	}
+
+	/**
+	 * Drop a pending interrupt's reference to its handler, freeing the index
+	 * once no pending interrupt uses it.
+	 */
+	private void releaseHandler(int index) {
+		if (--handlerReferences[index] > 0)
+			return;
+
+		Integer known = handlerIndices.get(handlers[index]);
+		if (known != null && known == index)
+			handlerIndices.remove(handlers[index]);
+
+		handlers[index] = null;
+		types[index] = null;
+		freeHandlers[numFreeHandlers++] = index;
+	}
+
+	private void tick(boolean inKernelMode, long numTicks) {
+		Lib.assertTrue(numTicks > 0);
+
+		this.inKernelMode = inKernelMode;
+
+		// keep the per-tick trace identical when it is being printed
+		if (Lib.test(dbgInt)) {
+			for (long i = 0; i < numTicks; i++)
+				tick(inKernelMode);
+			return;
+		}
+
+		Stats stats = privilege.stats;
+
+		if (inKernelMode) {
+			stats.kernelTicks += Stats.KernelTick * numTicks;
+			stats.totalTicks += Stats.KernelTick * numTicks;
+		}
+		else {
+			stats.userTicks += Stats.UserTick * numTicks;
+			stats.totalTicks += Stats.UserTick * numTicks;
+		}
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
 	}
 
 	private void tick(boolean inKernelMode) {
 		Stats stats = privilege.stats;
 
+		this.inKernelMode = inKernelMode;
+
 		if (inKernelMode) {
 			stats.kernelTicks += Stats.KernelTick;
 			stats.totalTicks += Stats.KernelTick;
@@ -151,6 +359,16 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	/**
+	 * Tests whether the last tick was a user mode tick, that is, whether an
+	 * interrupt handler running now has interrupted a user program.
+	 * 
+	 * @return <tt>true</tt> if the last tick was charged to user mode.
+	 */
+	boolean inUserMode() {
+		return !inKernelMode;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,27 +377,25 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (numPending == 0 || pendingTimes[0] > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && pendingTimes[0] <= time) {
+			int index = removeFirst();
+			Runnable handler = handlers[index];
+			String type = types[index];
 
-			Lib.assertTrue(next.time <= time);
+			// the handler may schedule itself again, and reuse the index
+			releaseHandler(index);
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,55 +406,62 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
-		}
+		// the heap is only partly ordered, so sort a copy of its slots
+		Integer[] slots = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			slots[i] = i;
+		Arrays.sort(slots, new java.util.Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return before(pendingTimes[a], pendingSequences[a], b) ? -1
+						: (a.equals(b) ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < numPending; i++)
+			System.out.println("  " + types[pendingHandlers[slots[i]]]
+					+ ", scheduled at " + pendingTimes[slots[i]]);
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+	private long numPendingInterruptsCreated = 0;
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
+	private Privilege privilege;
 
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
+	private boolean enabled;
 
-		long time;
+	/** <tt>true</tt> if the last tick was charged to kernel mode. */
+	private boolean inKernelMode = true;
 
-		String type;
+	/**
+	 * The pending interrupts, as a binary heap ordered by time and then by
+	 * sequence number, kept in parallel arrays.
+	 */
+	private long[] pendingTimes = new long[initialCapacity],
+			pendingSequences = new long[initialCapacity];
 
-		Runnable handler;
+	/** The handler index of each pending interrupt. */
+	private int[] pendingHandlers = new int[initialCapacity];
 
-		private long id;
-	}
+	private int numPending = 0;
 
-	private long numPendingInterruptsCreated = 0;
+	/**
+	 * The handlers and types of the pending interrupts, indexed by handler
+	 * index, with the number of pending interrupts using each one.
+	 */
+	private Runnable[] handlers = new Runnable[initialCapacity];
 
-	private Privilege privilege;
+	private String[] types = new String[initialCapacity];
 
-	private boolean enabled;
+	private int[] handlerReferences = new int[initialCapacity];
+
+	private int[] freeHandlers = new int[initialCapacity];
 
-	private TreeSet<PendingInterrupt> pending;
+	private int numFreeHandlers = 0;
+
+	private IdentityHashMap<Runnable, Integer> handlerIndices = new IdentityHashMap<Runnable, Integer>();
+
+	private static final int initialCapacity = 16;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +473,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, long numTicks) {
+			Interrupt.this.tick(inKernelMode, numTicks);
+		}
+
+		public long nextDueTime() {
+			return Interrupt.this.nextDueTime();
+		}
 	}
 }
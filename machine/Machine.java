@@ -111,6 +111,15 @@ public final class Machine {
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+
+		if (profiler != null)
+			profiler.writeProfile();
+
+		if (processor != null) {
+			processor.closeTrace();
+			processor.printBenchmark();
+		}
+
 		terminate();
 	}
 
@@ -201,6 +210,9 @@ public final class Machine {
 
 		if (Config.getBoolean("Machine.networkLink"))
 			networkLink = new NetworkLink(privilege);
+
+		if (processor != null && Config.getInteger("Profiler.interval", 0) > 0)
+			profiler = new Profiler(privilege);
 	}
 
 	private static void checkUserClasses() {
@@ -344,6 +356,16 @@ public final class Machine {
 		return processor;
 	}
 
+	/**
+	 * Return the user program profiler, enabled by setting the
+	 * <tt>Profiler.interval</tt> key.
+	 * 
+	 * @return the profiler, or <tt>null</tt> if profiling is disabled.
+	 */
+	public static Profiler profiler() {
+		return profiler;
+	}
+
 	/**
 	 * Return the hardware console.
 	 * 
@@ -388,6 +410,8 @@ public final class Machine {
 
 	private static Processor processor = null;
 
+	private static Profiler profiler = null;
+
 	private static SerialConsole console = null;
 
 	private static FileSystem stubFileSystem = null;
@@ -452,6 +476,76 @@ public final class Machine {
         public static void incrNumSwapWrites() { stats.numSwapWrites++; }
         public static void incrNumSwapSkips() { stats.numSwapSkips++; }
 
+	/**
+	 * Return the total time spent in user mode, for charging it to the
+	 * threads that ran.
+	 * 
+	 * @return the number of user ticks so far.
+	 */
+	public static long userTicks() {
+		return stats.userTicks;
+	}
+
+	/**
+	 * Return the total time spent in kernel mode.
+	 * 
+	 * @return the number of kernel ticks so far.
+	 */
+	public static long kernelTicks() {
+		return stats.kernelTicks;
+	}
+
+	/**
+	 * Return the total number of page faults.
+	 * 
+	 * @return the number of page faults so far.
+	 */
+	public static int numPageFaults() {
+		return stats.numPageFaults;
+	}
+
+	/**
+	 * Record that a scheduler has given the processor to a thread that
+	 * became ready <i>latency</i> ticks ago.
+	 * 
+	 * @param interactive <tt>true</tt> if the scheduler treats the thread as
+	 * interactive, <tt>false</tt> if it treats it as batch work.
+	 * @param latency the time the thread waited to run.
+	 */
+	public static void recordDispatch(boolean interactive, long latency) {
+		if (interactive) {
+			stats.numInteractiveDispatches++;
+			stats.interactiveLatencyTicks += latency;
+			stats.maxInteractiveLatency = Math.max(
+					stats.maxInteractiveLatency, latency);
+		}
+		else {
+			stats.numBatchDispatches++;
+			stats.batchLatencyTicks += latency;
+		}
+	}
+
+	/**
+	 * Record that a thread the scheduler treats as batch work ran for
+	 * <i>ticks</i> ticks.
+	 * 
+	 * @param ticks the time the thread ran.
+	 */
+	public static void recordBatchTicks(long ticks) {
+		stats.batchRunTicks += ticks;
+	}
+
+	/**
+	 * Record that a real-time job has ended, or run into the next period.
+	 * 
+	 * @param missed <tt>true</tt> if the job missed its deadline.
+	 */
+	public static void recordRealTimeJob(boolean missed) {
+		stats.numRealTimeJobs++;
+		if (missed)
+			stats.numDeadlineMisses++;
+	}
+
 	private static int numPhysPages = -1;
 
 	private static long randomSeed = 0;
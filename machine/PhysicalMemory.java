@@ -0,0 +1,103 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * The physical memory attached to a <tt>Processor</tt>. Physical addresses
+ * run from 0 to <tt>getSize()-1</tt>, and multi-byte values are stored
+ * little-endian, as on the MIPS.
+ * 
+ * <p>
+ * The kernel should use this interface, obtained from
+ * <tt>Processor.getPhysicalMemory()</tt>, rather than the array returned by
+ * <tt>Processor.getMemory()</tt>, which only exists when memory is kept on
+ * the Java heap.
+ */
+public abstract class PhysicalMemory {
+	/**
+	 * Return the number of bytes of physical memory.
+	 * 
+	 * @return the size of physical memory.
+	 */
+	public abstract int getSize();
+
+	/**
+	 * Read a 1, 2 or 4 byte value. Values shorter than 4 bytes are sign
+	 * extended, like <tt>Lib.bytesToInt()</tt>. The address must be a
+	 * multiple of the size.
+	 * 
+	 * @param paddr the physical address to read.
+	 * @param size the number of bytes to read.
+	 * @return the value read.
+	 */
+	public abstract int read(int paddr, int size);
+
+	/**
+	 * Write the low 1, 2 or 4 bytes of a value. The address must be a
+	 * multiple of the size.
+	 * 
+	 * @param paddr the physical address to write.
+	 * @param size the number of bytes to write.
+	 * @param value the value to write.
+	 */
+	public abstract void write(int paddr, int size, int value);
+
+	/**
+	 * Read the 4 byte word at a word-aligned address.
+	 * 
+	 * @param paddr the physical address of the word.
+	 * @return the word.
+	 */
+	public abstract int readWord(int paddr);
+
+	/**
+	 * Copy bytes from physical memory into an array.
+	 * 
+	 * @param paddr the first physical address to copy from.
+	 * @param data the destination array.
+	 * @param offset the first index in the array to copy to.
+	 * @param length the number of bytes to copy.
+	 */
+	public abstract void read(int paddr, byte[] data, int offset, int length);
+
+	/**
+	 * Copy bytes from an array into physical memory.
+	 * 
+	 * @param paddr the first physical address to copy to.
+	 * @param data the source array.
+	 * @param offset the first index in the array to copy from.
+	 * @param length the number of bytes to copy.
+	 */
+	public abstract void write(int paddr, byte[] data, int offset, int length);
+
+	/**
+	 * Set a range of physical memory to a single value.
+	 * 
+	 * @param paddr the first physical address to set.
+	 * @param length the number of bytes to set.
+	 * @param value the value to store in each byte.
+	 */
+	public abstract void fill(int paddr, int length, byte value);
+
+	/**
+	 * Read bytes from a file straight into physical memory.
+	 * 
+	 * @param file the file to read from.
+	 * @param pos the offset in the file of the first byte to read.
+	 * @param paddr the first physical address to copy to.
+	 * @param length the number of bytes to read.
+	 * @return the number of bytes read, or -1 on error.
+	 */
+	public abstract int readFile(OpenFile file, int pos, int paddr, int length);
+
+	/**
+	 * Write bytes from physical memory straight to a file.
+	 * 
+	 * @param file the file to write to.
+	 * @param pos the offset in the file of the first byte to write.
+	 * @param paddr the first physical address to copy from.
+	 * @param length the number of bytes to write.
+	 * @return the number of bytes written, or -1 on error.
+	 */
+	public abstract int writeFile(OpenFile file, int pos, int paddr, int length);
+}
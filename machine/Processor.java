@@ -6,8 +6,9 @@ import nachos.security.*;
 
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
- * subset of the R3000 instruction set. Specifically, the processor lacks all
- * coprocessor support, and can only execute in user mode. Address translation
+ * subset of the R3000 instruction set. Specifically, the processor only
+ * supports the floating point coprocessor (COP1), and can only execute in
+ * user mode. Address translation
  * information is accessed via the API. The API also allows a kernel to set an
  * exception handler to be called on any user mode exception.
  * 
@@ -18,6 +19,17 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * 
+ * <p>
+ * User code is normally executed one instruction at a time. Setting the
+ * <tt>Processor.engine</tt> key to <tt>blocks</tt> instead translates straight
+ * line runs of instructions into blocks of operations and executes those,
+ * which is faster but cannot produce a per-instruction trace. Setting it to
+ * <tt>general</tt> always uses the general interpreter, as the debugging
+ * flags and traces do, instead of its faster path. If
+ * <tt>Processor.benchmark</tt> is set, the number of user instructions
+ * executed and the wall clock time taken are printed when the machine halts,
+ * so the engines can be compared on the same program.
  */
 public final class Processor {
 	/**
@@ -45,9 +57,53 @@ public final class Processor {
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		// physical addresses are ints
+		Lib.assertTrue((long) pageSize * numPhysPages <= Integer.MAX_VALUE,
+				"too many physical pages");
+		int memorySize = pageSize * numPhysPages;
+
+		String memoryKind = Config.getString("Processor.memory", "array");
+		if (memoryKind.equals("array"))
+			mainMemory = new ArrayMemory(memorySize);
+		else if (memoryKind.equals("direct"))
+			mainMemory = new BufferMemory(memorySize);
+		else if (memoryKind.equals("mapped"))
+			mainMemory = new BufferMemory(memorySize,
+					Config.getString("Processor.memoryFile"));
+		else
+			Lib.assertNotReached("unknown Processor.memory " + memoryKind);
+
+		decodeCache = new DecodedInstruction[numPhysPages][];
+
+		String engine = Config.getString("Processor.engine", "interpreter");
+		if (engine.equals("blocks"))
+			blockCache = new Block[numPhysPages][];
+		else if (engine.equals("general"))
+			generalOnly = true;
+		else
+			Lib.assertTrue(engine.equals("interpreter"),
+					"unknown Processor.engine " + engine);
+
+		benchmark = Config.getBoolean("Processor.benchmark", false);
+
+		String traceFileName = Config.getString("Processor.trace");
+		if (traceFileName != null)
+			trace = new TraceRecorder(traceFileName);
+
+		if (Config.getBoolean("Processor.cache", false)) {
+			caches = new CacheHierarchy();
+			privilege.stats.caches = caches;
+		}
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+					tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0
+					&& tlbSize % tlbAssociativity == 0,
+					"bad TLB geometry " + tlbSize + "/" + tlbAssociativity);
+			tlbSets = tlbSize / tlbAssociativity;
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -91,20 +147,123 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
+		if (benchmark && startTime == 0)
+			startTime = System.nanoTime();
+
+		// only the general interpreter can print or record a per-instruction
+		// trace
+		if (!Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble) && trace == null
+				&& !generalOnly) {
+			if (blockCache != null) {
+				engineUsed = "blocks";
+				runBlocks();
+			}
+			else {
+				engineUsed = "fast";
+				runFast();
+			}
+		}
+
+		engineUsed = "general";
+
 		Instruction inst = new Instruction();
 
 		while (true) {
+			long budget = instructionsUntilDeadline();
+			long count = 0;
+
 			try {
-				inst.run();
+				while (count + stallTicks < budget) {
+					if (trace != null)
+						trace.begin(registers[regPC], asid);
+
+					inst.run();
+					count++;
+
+					if (trace != null)
+						trace.end();
+				}
 			}
 			catch (MipsException e) {
+				if (trace != null)
+					trace.fault(e.cause);
+
+				tickUser(count);
+
 				e.handle();
+
+				count = 1;
 			}
 
-			privilege.interrupt.tick(false);
+			tickUser(count);
 		}
 	}
 
+	/**
+	 * Finish the binary instruction trace, if one is being recorded. Called
+	 * when the machine halts.
+	 */
+	void closeTrace() {
+		if (trace != null)
+			trace.close();
+	}
+
+	/**
+	 * Print the number of user instructions executed since user code first
+	 * ran, the wall clock time since then, and their ratio, if
+	 * <tt>Processor.benchmark</tt> is set. Called when the machine halts. The
+	 * time includes the kernel's, such as loading programs, so only runs of
+	 * the same programs should be compared.
+	 */
+	void printBenchmark() {
+		if (!benchmark || startTime == 0)
+			return;
+
+		long nanos = System.nanoTime() - startTime;
+
+		System.out.println("Processor benchmark: " + engineUsed + " engine, "
+				+ numInstructions + " instructions in " + nanos / 1000000
+				+ " ms, " + Math.round(numInstructions * 1e9 / nanos)
+				+ " instructions/second");
+	}
+
+	/**
+	 * Advance the simulated time by the specified number of user
+	 * instructions, plus the ticks they stalled for in the caches.
+	 * 
+	 * @param count the number of instructions completed.
+	 */
+	private void tickUser(long count) {
+		long ticks = count + stallTicks;
+
+		numInstructions += count;
+
+		// clear this first; the tick can switch to another user thread
+		stallTicks = 0;
+
+		if (ticks > 0)
+			privilege.interrupt.tick(false, ticks);
+	}
+
+	/**
+	 * Return the number of user instructions that can be executed before the
+	 * next pending interrupt is due. Simulated time is only advanced, and
+	 * interrupts only checked, once these instructions have completed or one
+	 * of them has caused an exception, so no interrupt is delivered late,
+	 * except by the cache stall ticks of the last instruction.
+	 * 
+	 * @return the number of instructions to execute before the next tick, at
+	 * least 1.
+	 */
+	private long instructionsUntilDeadline() {
+		long budget = (privilege.interrupt.nextDueTime()
+				- privilege.stats.totalTicks + Stats.UserTick - 1)
+				/ Stats.UserTick;
+
+		return Math.max(budget, 1);
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -175,6 +334,8 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+
+		invalidateTranslations();
 	}
 
 	/**
@@ -188,6 +349,78 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. The
+	 * TLB is fully associative if this equals <tt>getTLBSize()</tt>.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbAssociativity;
+	}
+
+	/**
+	 * Return the set in which the TLB looks up the specified page of the
+	 * specified address space. Set <i>s</i> is made up of TLB entries
+	 * <i>s</i>*<tt>getTLBAssociativity()</tt> through
+	 * (<i>s</i>+1)*<tt>getTLBAssociativity()</tt>-1.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @param asid the address space identifier.
+	 * @return the index of the set.
+	 */
+	public int getTLBSet(int vpn, int asid) {
+		Lib.assertTrue(usingTLB);
+
+		return tlbSet(vpn, asid);
+	}
+
+	private int tlbSet(int vpn, int asid) {
+		return ((vpn ^ (asid * 0x9E3779B1)) & 0x7FFFFFFF) % tlbSets;
+	}
+
+	/**
+	 * Set the address space identifier of the running program. The TLB only
+	 * matches entries whose <tt>asid</tt> equals this value, so entries
+	 * belonging to different address spaces need not be flushed on a context
+	 * switch. The cache statistics are also kept separately for each address
+	 * space identifier, so it is worth setting in page table mode too.
+	 * 
+	 * @param asid the new address space identifier.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(asid >= 0);
+
+		this.asid = asid;
+
+		if (caches != null)
+			caches.setOwner(asid);
+	}
+
+	/**
+	 * Return the address space identifier set by the last call to
+	 * <tt>setASID()</tt>, initially 0.
+	 * 
+	 * @return the current address space identifier.
+	 */
+	public int getASID() {
+		return asid;
+	}
+
+	/**
+	 * Invalidate every entry in the TLB.
+	 */
+	public void flushTLB() {
+		Lib.assertTrue(usingTLB);
+
+		for (int i = 0; i < tlbSize; i++)
+			translations[i].valid = false;
+
+		privilege.stats.numTLBFlushes++;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +438,9 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * By default the TLB is fully associative, so the location of an entry
+	 * within the TLB does not affect anything. Otherwise a valid entry must be
+	 * written to the set returned by <tt>getTLBSet()</tt>.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -214,6 +448,8 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid
+				|| number / tlbAssociativity == tlbSet(entry.vpn, entry.asid));
 
 		translations[number] = new TranslationEntry(entry);
 	}
@@ -230,11 +466,26 @@ public final class Processor {
 
 	/**
 	 * Return a reference to the physical memory array. The size of this array
-	 * is <tt>pageSize * getNumPhysPages()</tt>.
+	 * is <tt>pageSize * getNumPhysPages()</tt>. Only available when the
+	 * <tt>Processor.memory</tt> key selects the default <tt>array</tt>
+	 * memory; use <tt>getPhysicalMemory()</tt> instead.
 	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
+		Lib.assertTrue(mainMemory instanceof ArrayMemory,
+				"physical memory is not a Java array");
+
+		return ((ArrayMemory) mainMemory).getArray();
+	}
+
+	/**
+	 * Return the physical memory. Its size is
+	 * <tt>pageSize * getNumPhysPages()</tt>.
+	 * 
+	 * @return the physical memory.
+	 */
+	public PhysicalMemory getPhysicalMemory() {
 		return mainMemory;
 	}
 
@@ -284,79 +535,70 @@ public final class Processor {
 	 * make sure a read-only page is not being written, make sure the resulting
 	 * physical page is valid, and then return the resulting physical address.
 	 * 
+	 * <p>
+	 * In page table mode, the last translation of each kind of access is
+	 * remembered, and later accesses of the same kind to the same page only
+	 * update the used and dirty bits.
+	 * 
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
-	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param access <tt>accessFetch</tt>, <tt>accessLoad</tt> or
+	 * <tt>accessStore</tt>.
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
+	private int translate(int vaddr, int size, int access)
 			throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-					+ (writing ? ", write" : ", read..."));
+					+ (access == accessStore ? ", write" : ", read..."));
 
-		// check alignment
-		if ((vaddr & (size - 1)) != 0) {
-			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+		int paddr = fastTranslate(vaddr, size, access);
+		if (paddr < 0) {
+			Lib.debug(dbgProcessor, "\t\t" + exceptionNames[~paddr].trim());
+			throw new MipsException(~paddr, vaddr);
 		}
 
-		// calculate virtual page number and offset from the virtual address
-		int vpn = pageFromAddress(vaddr);
-		int offset = offsetFromAddress(vaddr);
+		if (Lib.test(dbgProcessor))
+			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		return paddr;
+	}
+
+	/**
+	 * Read a word of virtual memory without any side effects: no exception is
+	 * raised, and no statistics, used bits or cached translations change.
+	 * Used by the profiler to walk the user stack.
+	 * 
+	 * @param vaddr the virtual address to read.
+	 * @return the word read, zero-extended, or -1 if <i>vaddr</i> is not
+	 * aligned or not mapped.
+	 */
+	long peekWord(int vaddr) {
+		if ((vaddr & 0x3) != 0)
+			return -1;
 
+		int vpn = pageFromAddress(vaddr);
 		TranslationEntry entry = null;
 
-		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
-			if (translations == null || vpn >= translations.length
-					|| translations[vpn] == null || !translations[vpn].valid) {
-				privilege.stats.numPageFaults++;
-				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
-			}
-
-			entry = translations[vpn];
+			if (translations != null && vpn < translations.length)
+				entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
 		else {
 			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
-			if (entry == null) {
-				privilege.stats.numTLBMisses++;
-				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				TranslationEntry candidate = translations[i];
+				if (candidate.valid && candidate.vpn == vpn
+						&& candidate.asid == asid)
+					entry = candidate;
 			}
 		}
 
-		// check if trying to write a read-only page
-		if (entry.readOnly && writing) {
-			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
-		}
-
-		// check if physical page number is out of range
-		int ppn = entry.ppn;
-		if (ppn < 0 || ppn >= numPhysPages) {
-			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
-		}
-
-		// set used and dirty bits as appropriate
-		entry.used = true;
-		if (writing)
-			entry.dirty = true;
-
-		int paddr = (ppn * pageSize) + offset;
+		if (entry == null || !entry.valid || entry.ppn < 0
+				|| entry.ppn >= numPhysPages)
+			return -1;
 
-		if (Lib.test(dbgProcessor))
-			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
-		return paddr;
+		return mainMemory.readWord(entry.ppn * pageSize
+				+ offsetFromAddress(vaddr)) & 0xFFFFFFFFL;
 	}
 
 	/**
@@ -375,8 +617,17 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		if (trace != null)
+			trace.data(vaddr, false);
+
+		int paddr = translate(vaddr, size, accessLoad);
+		int value = mainMemory.read(paddr, size);
+
+		if (trace != null)
+			trace.translated(paddr);
+
+		if (caches != null)
+			stallTicks += caches.load(paddr);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -402,7 +653,17 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		if (trace != null)
+			trace.data(vaddr, true);
+
+		int paddr = translate(vaddr, size, accessStore);
+		writePhys(paddr, size, value);
+
+		if (trace != null)
+			trace.translated(paddr);
+
+		if (caches != null)
+			stallTicks += caches.store(paddr);
 	}
 
 	/**
@@ -457,196 +718,1574 @@ public final class Processor {
 		registers[regNextPC] = nextPC;
 	}
 
-	/** Caused by a syscall instruction. */
-	public static final int exceptionSyscall = 0;
+	/**
+	 * Execute instructions exactly as the general interpreter does, but
+	 * without any debugging output or per-instruction allocation. Never
+	 * returns.
+	 * 
+	 * <p>
+	 * Exceptions are not thrown; <tt>step()</tt> returns the cause instead,
+	 * with the bad virtual address, if any, left in <tt>faultVAddr</tt>.
+	 */
+	private void runFast() {
+		interpreter = new Instruction();
 
-	/** Caused by an access to an invalid virtual page. */
-	public static final int exceptionPageFault = 1;
+		while (true) {
+			long budget = instructionsUntilDeadline();
+			long count = 0;
+			int cause = exceptionNone;
 
-	/** Caused by an access to a virtual page not mapped by any TLB entry. */
-	public static final int exceptionTLBMiss = 2;
+			while (count + stallTicks < budget) {
+				cause = step();
+				if (cause != exceptionNone)
+					break;
+				count++;
+			}
 
-	/** Caused by a write access to a read-only virtual page. */
-	public static final int exceptionReadOnly = 3;
+			if (cause != exceptionNone) {
+				tickUser(count);
 
-	/** Caused by an access to an invalid physical page. */
-	public static final int exceptionBusError = 4;
+				handleException(cause, faultHasVAddr, faultVAddr);
 
-	/** Caused by an access to a misaligned virtual address. */
-	public static final int exceptionAddressError = 5;
+				count = 1;
+			}
 
-	/** Caused by an overflow by a signed operation. */
-	public static final int exceptionOverflow = 6;
+			tickUser(count);
+		}
+	}
 
-	/** Caused by an attempt to execute an illegal instruction. */
-	public static final int exceptionIllegalInstruction = 7;
+	/**
+	 * Fetch, decode and execute the instruction at the current PC.
+	 * 
+	 * <p>
+	 * The result of each operation, and address translation, are computed by
+	 * the same methods the general interpreter and the block engine use
+	 * (<tt>alu()</tt>, <tt>branchTaken()</tt>, <tt>partialMask()</tt>,
+	 * <tt>partialShift()</tt> and <tt>fastTranslate()</tt>), and COP1
+	 * instructions are left to the general interpreter. What this method
+	 * repeats of <tt>Instruction</tt> is only the sequencing around them:
+	 * reading the operands, the memory accesses, and writing back. That is
+	 * kept separate on purpose. Here it works on locals, and reports a fault
+	 * by returning its cause. <tt>Instruction</tt> keeps its state in fields
+	 * that its disassembler prints, tests the debug flags at every step, and
+	 * records the trace around each memory access. Sharing one copy would put
+	 * those tests and that state back on this path, which is the cost it
+	 * exists to avoid (see the <tt>Processor.benchmark</tt> key).
+	 * 
+	 * @return <tt>exceptionNone</tt>, or the cause of the exception the
+	 * instruction caused.
+	 */
+	private int step() {
+		int paddr = fastTranslate(registers[regPC], 4, accessFetch);
+		if (paddr < 0)
+			return ~paddr;
 
-	/** The names of the CPU exceptions. */
-	public static final String exceptionNames[] = { "syscall      ",
-			"page fault   ", "TLB miss     ", "read-only    ", "bus error    ",
-			"address error", "overflow     ", "illegal inst " };
+		DecodedInstruction info = decoded(paddr, mainMemory.readWord(paddr));
 
-	/** Index of return value register 0. */
-	public static final int regV0 = 2;
+		if (caches != null)
+			stallTicks += caches.fetch(paddr);
 
-	/** Index of return value register 1. */
-	public static final int regV1 = 3;
+		// COP1 instructions are rare enough to leave to the interpreter
+		if (info.operation >= Mips.MFC1)
+			return interpret(info);
 
-	/** Index of argument register 0. */
-	public static final int regA0 = 4;
+		int flags = info.flags;
+		int size = info.size;
 
-	/** Index of argument register 1. */
-	public static final int regA1 = 5;
+		int nextPC = registers[regNextPC] + 4;
 
-	/** Index of argument register 2. */
-	public static final int regA2 = 6;
+		int jtarget = 0;
+		if (info.format == Mips.RFMT)
+			jtarget = registers[info.rs];
+		else if (info.format == Mips.IFMT)
+			jtarget = registers[regNextPC] + (info.imm << 2);
+		else if (info.format == Mips.JFMT)
+			jtarget = (registers[regNextPC] & 0xF0000000) | (info.target << 2);
 
-	/** Index of argument register 3. */
-	public static final int regA3 = 7;
+		int addr = registers[info.rs] + info.imm;
 
-	/** Index of the stack pointer register. */
-	public static final int regSP = 29;
+		long src1 = ((flags & Mips.SRC1SH) != 0) ? info.sh : registers[info.rs];
+		long src2 = ((flags & Mips.SRC2IMM) != 0) ? info.imm
+				: registers[info.rt];
 
-	/** Index of the return address register. */
-	public static final int regRA = 31;
+		if ((flags & Mips.UNSIGNED) != 0) {
+			src1 &= 0xFFFFFFFFL;
+			src2 &= 0xFFFFFFFFL;
+		}
 
-	/** Index of the low register, used for multiplication and division. */
-	public static final int regLo = 32;
+		long dst = 0;
+		int mask = 0xFFFFFFFF;
+		boolean branch = true;
+		int value;
+
+		switch (info.operation) {
+		case Mips.ADD:
+		case Mips.SUB:
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+		case Mips.SLT:
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.NOR:
+		case Mips.XOR:
+		case Mips.LUI:
+			dst = alu(info.operation, src1, src2, info.imm);
+			break;
+		case Mips.MULT:
+			dst = src1 * src2;
+			registers[regLo] = (int) dst;
+			registers[regHi] = (int) (dst >>> 32);
+			break;
+		case Mips.DIV:
+			if (src2 == 0)
+				return fault(exceptionOverflow);
+			registers[regLo] = (int) (src1 / src2);
+			registers[regHi] = (int) (src1 % src2);
+			if (registers[regLo] * src2 + registers[regHi] != src1)
+				return fault(exceptionOverflow);
+			break;
+
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BGEZ:
+		case Mips.BGTZ:
+		case Mips.BLEZ:
+		case Mips.BLTZ:
+			branch = branchTaken(info.operation, src1, src2);
+			break;
+
+		case Mips.JUMP:
+			break;
+
+		case Mips.MFLO:
+			dst = registers[regLo];
+			break;
+		case Mips.MFHI:
+			dst = registers[regHi];
+			break;
+		case Mips.MTLO:
+			registers[regLo] = (int) src1;
+			break;
+		case Mips.MTHI:
+			registers[regHi] = (int) src1;
+			break;
+
+		case Mips.SYSCALL:
+			return fault(exceptionSyscall);
+
+		case Mips.LOAD:
+			paddr = fastTranslate(addr, size, accessLoad);
+			if (paddr < 0)
+				return ~paddr;
+
+			value = mainMemory.read(paddr, size);
+
+			if (caches != null)
+				stallTicks += caches.load(paddr);
+
+			if ((flags & Mips.UNSIGNED) == 0)
+				dst = Lib.extend(value, 0, size * 8);
+			else
+				dst = value;
 
-	/** Index of the high register, used for multiplication and division. */
-	public static final int regHi = 33;
+			break;
 
-	/** Index of the program counter register. */
-	public static final int regPC = 34;
+		case Mips.LWL:
+		case Mips.LWR:
+			paddr = fastTranslate(addr & ~0x3, 4, accessLoad);
+			if (paddr < 0)
+				return ~paddr;
 
-	/** Index of the next program counter register. */
-	public static final int regNextPC = 35;
+			value = mainMemory.readWord(paddr);
 
-	/** Index of the exception cause register. */
-	public static final int regCause = 36;
+			if (caches != null)
+				stallTicks += caches.load(paddr);
 
-	/** Index of the exception bad virtual address register. */
-	public static final int regBadVAddr = 37;
+			mask = partialMask(info.operation, addr);
+			dst = partialShift(info.operation, addr, value);
+			break;
 
-	/** The total number of software-accessible CPU registers. */
-	public static final int numUserRegisters = 38;
+		case Mips.STORE:
+			paddr = fastTranslate(addr, size, accessStore);
+			if (paddr < 0)
+				return ~paddr;
 
-	/** Provides privilege to this processor. */
-	private Privilege privilege;
+			writePhys(paddr, size, (int) src2);
 
-	/** MIPS registers accessible to the kernel. */
-	private int registers[] = new int[numUserRegisters];
+			if (caches != null)
+				stallTicks += caches.store(paddr);
+			break;
 
-	/** The registered target of the delayed load currently in progress. */
-	private int loadTarget = 0;
+		case Mips.SWL:
+		case Mips.SWR:
+			paddr = fastTranslate(addr & ~0x3, 4, accessLoad);
+			if (paddr < 0)
+				return ~paddr;
 
-	/** The bits to be modified by the delayed load currently in progress. */
-	private int loadMask;
+			value = mainMemory.readWord(paddr);
 
-	/** The value to be loaded by the delayed load currently in progress. */
-	private int loadValue;
+			if (caches != null)
+				stallTicks += caches.load(paddr);
 
-	/** <tt>true</tt> if using a software-managed TLB. */
-	private boolean usingTLB;
+			mask = partialMask(info.operation, addr);
+			dst = (partialShift(info.operation, addr, (int) src2) & mask)
+					| (value & ~mask);
 
-	/** Number of TLB entries. */
-	private int tlbSize = 4;
+			paddr = fastTranslate(addr & ~0x3, 4, accessStore);
+			if (paddr < 0)
+				return ~paddr;
 
-	/**
-	 * Either an associative or direct-mapped set of translation entries,
-	 * depending on whether there is a TLB.
-	 */
-	private TranslationEntry[] translations;
+			writePhys(paddr, 4, (int) dst);
 
-	/** Size of a page, in bytes. */
-	public static final int pageSize = 0x400;
+			if (caches != null)
+				stallTicks += caches.store(paddr);
+			break;
 
-	/** Number of pages in a 32-bit address space. */
-	public static final int maxPages = (int) (0x100000000L / pageSize);
+		case Mips.UNIMPL:
+			System.err.println("Warning: encountered unimplemented inst");
+			return fault(exceptionIllegalInstruction);
 
-	/** Number of physical pages in memory. */
-	private int numPhysPages;
+		default:
+			return fault(exceptionIllegalInstruction);
+		}
 
-	/** Main memory for user programs. */
-	private byte[] mainMemory;
+		if ((flags & Mips.OVERFLOW) != 0
+				&& Lib.test(dst, 31) != Lib.test(dst, 32))
+			return fault(exceptionOverflow);
 
-	/** The kernel exception handler, called on every user exception. */
-	private Runnable exceptionHandler = null;
+		if ((flags & Mips.DELAYEDLOAD) != 0)
+			delayedLoad(info.dstReg, (int) dst, mask);
+		else
+			finishLoad();
 
-	private static final char dbgProcessor = 'p';
+		if ((flags & Mips.LINK) != 0)
+			dst = nextPC;
 
-	private static final char dbgDisassemble = 'm';
+		if ((flags & Mips.DST) != 0 && info.dstReg != 0)
+			registers[info.dstReg] = (int) dst;
 
-	private static final char dbgFullDisassemble = 'M';
+		if ((flags & Mips.BRANCH) != 0 && branch)
+			nextPC = jtarget;
 
-	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
-		public void flushPipe() {
-			finishLoad();
-		}
-	}
+		advancePC(nextPC);
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+		return exceptionNone;
+	}
 
-			this.cause = cause;
+	/**
+	 * Execute an instruction <tt>step()</tt> does not implement itself with
+	 * the general interpreter.
+	 * 
+	 * @param info the decoded instruction.
+	 * @return <tt>exceptionNone</tt>, or the cause of the exception the
+	 * instruction caused.
+	 */
+	private int interpret(DecodedInstruction info) {
+		try {
+			interpreter.run(info);
 		}
-
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
-
-			hasBadVAddr = true;
-			this.badVAddr = badVAddr;
+		catch (MipsException e) {
+			faultHasVAddr = e.hasBadVAddr;
+			faultVAddr = e.badVAddr;
+			return e.cause;
 		}
 
-		public void handle() {
-			writeRegister(regCause, cause);
-
-			if (hasBadVAddr)
-				writeRegister(regBadVAddr, badVAddr);
-
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				System.out.println("exception: " + exceptionNames[cause]);
+		return exceptionNone;
+	}
 
-			finishLoad();
+	/**
+	 * Record an exception without a bad virtual address.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @return <tt>cause</tt>.
+	 */
+	private int fault(int cause) {
+		faultHasVAddr = false;
+		return cause;
+	}
 
-			Lib.assertTrue(exceptionHandler != null);
+	/**
+	 * Compute the result of an ALU instruction. The interpreters and the
+	 * block engine all compute these results here, so that they cannot
+	 * disagree.
+	 * 
+	 * @param operation <tt>Mips.ADD</tt>, <tt>SUB</tt>, <tt>SLL</tt>,
+	 * <tt>SRA</tt>, <tt>SRL</tt>, <tt>SLT</tt>, <tt>AND</tt>, <tt>OR</tt>,
+	 * <tt>NOR</tt>, <tt>XOR</tt> or <tt>LUI</tt>.
+	 * @param src1 the first operand, or the shift amount.
+	 * @param src2 the second operand.
+	 * @param imm the immediate field, loaded by <tt>lui</tt>.
+	 * @return the result, before any overflow check.
+	 */
+	private static long alu(int operation, long src1, long src2, int imm) {
+		switch (operation) {
+		case Mips.ADD:
+			return src1 + src2;
+		case Mips.SUB:
+			return src1 - src2;
+		case Mips.SLL:
+			return src2 << (src1 & 0x1F);
+		case Mips.SRA:
+			return src2 >> (src1 & 0x1F);
+		case Mips.SRL:
+			return src2 >>> (src1 & 0x1F);
+		case Mips.SLT:
+			return (src1 < src2) ? 1 : 0;
+		case Mips.AND:
+			return src1 & src2;
+		case Mips.OR:
+			return src1 | src2;
+		case Mips.NOR:
+			return ~(src1 | src2);
+		case Mips.XOR:
+			return src1 ^ src2;
+		default:
+			return imm << 16;
+		}
+	}
 
-			// autograder might not want kernel to know about this exception
-			if (!Machine.autoGrader().exceptionHandler(privilege))
+	/**
+	 * Test whether a conditional branch is taken.
+	 * 
+	 * @param operation <tt>Mips.BEQ</tt>, <tt>BNE</tt>, <tt>BGEZ</tt>,
+	 * <tt>BGTZ</tt>, <tt>BLEZ</tt> or <tt>BLTZ</tt>.
+	 * @param src1 the value of <i>rs</i>.
+	 * @param src2 the value of <i>rt</i>.
+	 * @return <tt>true</tt> if the branch is taken.
+	 */
+	private static boolean branchTaken(int operation, long src1, long src2) {
+		switch (operation) {
+		case Mips.BEQ:
+			return src1 == src2;
+		case Mips.BNE:
+			return src1 != src2;
+		case Mips.BGEZ:
+			return src1 >= 0;
+		case Mips.BGTZ:
+			return src1 > 0;
+		case Mips.BLEZ:
+			return src1 <= 0;
+		default:
+			return src1 < 0;
+		}
+	}
+
+	/**
+	 * Return the bits of the aligned word that an <tt>lwl</tt>,
+	 * <tt>lwr</tt>, <tt>swl</tt> or <tt>swr</tt> of the specified address
+	 * replaces; the other bits are preserved. <tt>lwl</tt> and <tt>swr</tt>
+	 * replace the high order bytes, <tt>lwr</tt> and <tt>swl</tt> the low
+	 * order ones.
+	 * 
+	 * @param operation <tt>Mips.LWL</tt>, <tt>LWR</tt>, <tt>SWL</tt> or
+	 * <tt>SWR</tt>.
+	 * @param addr the unaligned address.
+	 * @return the mask of the replaced bits.
+	 */
+	private static int partialMask(int operation, int addr) {
+		switch (operation) {
+		case Mips.LWL:
+			return -1 << ((3 - (addr & 0x3)) * 8);
+		case Mips.LWR:
+			return -1 >>> ((addr & 0x3) * 8);
+		case Mips.SWL:
+			return -1 >>> ((3 - (addr & 0x3)) * 8);
+		default:
+			return -1 << ((addr & 0x3) * 8);
+		}
+	}
+
+	/**
+	 * Shift a word into the bits that <tt>partialMask()</tt> returns.
+	 * <tt>lwl</tt> shifts the loaded word left so the addressed byte is
+	 * highest, and <tt>lwr</tt> shifts it right so the addressed byte is
+	 * lowest; <tt>swl</tt> moves the highest order byte of the register into
+	 * the addressed position, and <tt>swr</tt> the lowest order byte.
+	 * 
+	 * @param operation <tt>Mips.LWL</tt>, <tt>LWR</tt>, <tt>SWL</tt> or
+	 * <tt>SWR</tt>.
+	 * @param addr the unaligned address.
+	 * @param word the word loaded from memory, or the register to store.
+	 * @return the shifted word.
+	 */
+	private static int partialShift(int operation, int addr, int word) {
+		switch (operation) {
+		case Mips.LWL:
+			return word << ((3 - (addr & 0x3)) * 8);
+		case Mips.LWR:
+			return word >>> ((addr & 0x3) * 8);
+		case Mips.SWL:
+			return word >>> ((3 - (addr & 0x3)) * 8);
+		default:
+			return word << ((addr & 0x3) * 8);
+		}
+	}
+
+	/**
+	 * Translate a virtual address as <tt>translate()</tt> does, but without
+	 * debugging output, and returning the complement of the exception cause
+	 * instead of throwing a <tt>MipsException</tt>. The bad virtual address
+	 * is left in <tt>faultVAddr</tt>. Both interpreters and the block engine
+	 * translate through this method.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param size the size of the memory reference (must be 1, 2, or 4).
+	 * @param access <tt>accessFetch</tt>, <tt>accessLoad</tt> or
+	 * <tt>accessStore</tt>.
+	 * @return the physical address, or <tt>~cause</tt> if translation failed.
+	 */
+	private int fastTranslate(int vaddr, int size, int access) {
+		boolean writing = (access == accessStore);
+
+		if ((vaddr & (size - 1)) != 0)
+			return ~badVAddr(exceptionAddressError, vaddr);
+
+		int vpn = pageFromAddress(vaddr);
+
+		if (vpn == cachedVPN[access]) {
+			TranslationEntry entry = cachedEntry[access];
+			entry.used = true;
+			if (writing)
+				entry.dirty = true;
+
+			return cachedBase[access] + offsetFromAddress(vaddr);
+		}
+
+		TranslationEntry entry = null;
+
+		if (!usingTLB) {
+			if (translations == null || vpn >= translations.length
+					|| translations[vpn] == null || !translations[vpn].valid) {
+				privilege.stats.numPageFaults++;
+				return ~badVAddr(exceptionPageFault, vaddr);
+			}
+
+			entry = translations[vpn];
+		}
+		else {
+			entry = lookupTLB(vpn);
+			if (entry == null) {
+				privilege.stats.numTLBMisses++;
+				return ~badVAddr(exceptionTLBMiss, vaddr);
+			}
+		}
+
+		if (entry.readOnly && writing)
+			return ~badVAddr(exceptionReadOnly, vaddr);
+
+		int ppn = entry.ppn;
+		if (ppn < 0 || ppn >= numPhysPages)
+			return ~badVAddr(exceptionBusError, vaddr);
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		if (!usingTLB)
+			cacheTranslation(access, vpn, entry, ppn * pageSize);
+
+		return (ppn * pageSize) + offsetFromAddress(vaddr);
+	}
+
+	/**
+	 * Search the TLB set for the specified page for an entry matching it and
+	 * the current address space.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the matching entry, or <tt>null</tt> on a TLB miss.
+	 */
+	private TranslationEntry lookupTLB(int vpn) {
+		int first = tlbSet(vpn, asid) * tlbAssociativity;
+
+		for (int i = first; i < first + tlbAssociativity; i++) {
+			TranslationEntry entry = translations[i];
+			if (entry.valid && entry.vpn == vpn && entry.asid == asid) {
+				privilege.stats.numTLBHits++;
+				return entry;
+			}
+		}
+
+		return null;
+	}
+
+	private void cacheTranslation(int access, int vpn, TranslationEntry entry,
+			int base) {
+		cachedVPN[access] = vpn;
+		cachedEntry[access] = entry;
+		cachedBase[access] = base;
+	}
+
+	/**
+	 * Forget all remembered page table translations. The kernel must call this
+	 * after changing the <tt>valid</tt>, <tt>readOnly</tt> or <tt>ppn</tt>
+	 * field of an entry in a page table that may be in use, or after replacing
+	 * an entry. Changes to the <tt>used</tt> and <tt>dirty</tt> bits need no
+	 * invalidation. <tt>setPageTable()</tt> calls this automatically.
+	 */
+	public void invalidateTranslations() {
+		for (int i = 0; i < cachedVPN.length; i++) {
+			cachedVPN[i] = -1;
+			cachedEntry[i] = null;
+		}
+	}
+
+	private int badVAddr(int cause, int vaddr) {
+		faultHasVAddr = true;
+		faultVAddr = vaddr;
+		return cause;
+	}
+
+	private void writePhys(int paddr, int size, int value) {
+		mainMemory.write(paddr, size, value);
+
+		if (blockCache != null && blockCache[paddr / pageSize] != null)
+			invalidateBlocks(paddr / pageSize);
+	}
+
+	/**
+	 * Deliver an exception to the kernel: set the cause and bad virtual
+	 * address registers, complete any delayed load, and call the exception
+	 * handler.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @param hasBadVAddr <tt>true</tt> if the exception has a bad address.
+	 * @param badVAddr the bad virtual address.
+	 */
+	private void handleException(int cause, boolean hasBadVAddr, int badVAddr) {
+		writeRegister(regCause, cause);
+
+		if (hasBadVAddr)
+			writeRegister(regBadVAddr, badVAddr);
+
+		if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			System.out.println("exception: " + exceptionNames[cause]);
+
+		finishLoad();
+
+		Lib.assertTrue(exceptionHandler != null);
+
+		// autograder might not want kernel to know about this exception
+		if (!Machine.autoGrader().exceptionHandler(privilege))
+			return;
+
+		exceptionHandler.run();
+	}
+
+	/**
+	 * Return the decoded form of the instruction word at the specified
+	 * physical address, decoding it only if it is not already cached.
+	 * 
+	 * @param paddr the physical address the word was fetched from.
+	 * @param value the instruction word.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction decoded(int paddr, int value) {
+		DecodedInstruction[] page = decodeCache[paddr / pageSize];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodeCache[paddr / pageSize] = page;
+		}
+
+		// the cached entry is only good if memory still holds the same word
+		int index = (paddr % pageSize) / 4;
+		DecodedInstruction info = page[index];
+		if (info == null)
+			page[index] = info = new DecodedInstruction(value);
+		else if (info.value != value)
+			info.decode(value);
+
+		return info;
+	}
+
+	/**
+	 * Execute user code one basic block at a time. Never returns.
+	 * 
+	 * <p>
+	 * Each pass of the outer loop runs instructions up to the next interrupt
+	 * deadline and then charges all of them to the simulated time at once, so
+	 * interrupts are still delivered on the same tick as they would be by the
+	 * interpreter. Exceptions end the pass early; the instructions completed
+	 * before the exception are charged first, and the faulting instruction is
+	 * charged after the kernel handles it, again matching the interpreter.
+	 */
+	private void runBlocks() {
+		interpreter = new Instruction();
+
+		while (true) {
+			long budget = instructionsUntilDeadline();
+
+			blockTicks = 0;
+
+			try {
+				Block block = null;
+				while (blockTicks + stallTicks < budget) {
+					block = findBlock(block);
+					block.run(budget);
+				}
+
+				tickUser(blockTicks);
+			}
+			catch (MipsException e) {
+				tickUser(blockTicks);
+
+				e.handle();
+
+				tickUser(1);
+			}
+
+			// the kernel may have rewritten physical memory behind our back
+			blockEpoch++;
+		}
+	}
+
+	/**
+	 * Find the block starting at the current PC, translating it if
+	 * necessary. Translating the PC here stands in for the instruction fetch
+	 * of every instruction in the block, since a block never crosses a page
+	 * boundary.
+	 * 
+	 * @param previous the block that was just executed, or <tt>null</tt>.
+	 * @return the block to execute next.
+	 * @exception MipsException if the PC could not be translated.
+	 */
+	private Block findBlock(Block previous) throws MipsException {
+		int paddr = translate(registers[regPC], 4, accessFetch);
+
+		// follow the chain from the previous block if it still applies
+		if (previous != null) {
+			Block next = previous.successor;
+			if (next != null && next.valid && next.paddr == paddr
+					&& next.epoch == blockEpoch)
+				return next;
+		}
+
+		int ppn = paddr / pageSize;
+		Block[] page = blockCache[ppn];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blockCache[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		Block block = page[index];
+		if (block == null || !block.verify())
+			page[index] = block = new Block(paddr);
+
+		if (previous != null)
+			previous.successor = block;
+
+		return block;
+	}
+
+	/**
+	 * Discard every block translated from the specified physical page. Called
+	 * when a user store modifies the page.
+	 * 
+	 * @param ppn the physical page that was written.
+	 */
+	private void invalidateBlocks(int ppn) {
+		Block[] page = blockCache[ppn];
+		for (int i = 0; i < page.length; i++) {
+			if (page[i] != null)
+				page[i].valid = false;
+		}
+
+		blockCache[ppn] = null;
+	}
+
+	/** Caused by a syscall instruction. */
+	public static final int exceptionSyscall = 0;
+
+	/** Caused by an access to an invalid virtual page. */
+	public static final int exceptionPageFault = 1;
+
+	/** Caused by an access to a virtual page not mapped by any TLB entry. */
+	public static final int exceptionTLBMiss = 2;
+
+	/** Caused by a write access to a read-only virtual page. */
+	public static final int exceptionReadOnly = 3;
+
+	/** Caused by an access to an invalid physical page. */
+	public static final int exceptionBusError = 4;
+
+	/** Caused by an access to a misaligned virtual address. */
+	public static final int exceptionAddressError = 5;
+
+	/** Caused by an overflow by a signed operation. */
+	public static final int exceptionOverflow = 6;
+
+	/** Caused by an attempt to execute an illegal instruction. */
+	public static final int exceptionIllegalInstruction = 7;
+
+	/** The names of the CPU exceptions. */
+	public static final String exceptionNames[] = { "syscall      ",
+			"page fault   ", "TLB miss     ", "read-only    ", "bus error    ",
+			"address error", "overflow     ", "illegal inst " };
+
+	/** Index of return value register 0. */
+	public static final int regV0 = 2;
+
+	/** Index of return value register 1. */
+	public static final int regV1 = 3;
+
+	/** Index of argument register 0. */
+	public static final int regA0 = 4;
+
+	/** Index of argument register 1. */
+	public static final int regA1 = 5;
+
+	/** Index of argument register 2. */
+	public static final int regA2 = 6;
+
+	/** Index of argument register 3. */
+	public static final int regA3 = 7;
+
+	/** Index of the stack pointer register. */
+	public static final int regSP = 29;
+
+	/** Index of the return address register. */
+	public static final int regRA = 31;
+
+	/** Index of the low register, used for multiplication and division. */
+	public static final int regLo = 32;
+
+	/** Index of the high register, used for multiplication and division. */
+	public static final int regHi = 33;
+
+	/** Index of the program counter register. */
+	public static final int regPC = 34;
+
+	/** Index of the next program counter register. */
+	public static final int regNextPC = 35;
+
+	/** Index of the exception cause register. */
+	public static final int regCause = 36;
+
+	/** Index of the exception bad virtual address register. */
+	public static final int regBadVAddr = 37;
+
+	/**
+	 * Index of floating point register <tt>$f0</tt>. Register <tt>$f</tt><i>n</i>
+	 * is at <tt>regF0 + </tt><i>n</i>. A double occupies an even/odd pair,
+	 * with its low word in the even register.
+	 */
+	public static final int regF0 = 38;
+
+	/** Index of the floating point control and status register (FCR31). */
+	public static final int regFCSR = 70;
+
+	/** The total number of software-accessible CPU registers. */
+	public static final int numUserRegisters = 71;
+
+	/** The FP condition bit in FCR31, set by compares and tested by bc1. */
+	private static final int fcsrCondition = 1 << 23;
+
+	/** The value of FCR0: an R3010 floating point unit, revision 0. */
+	private static final int fpImplementation = 0x0300;
+
+	/** Provides privilege to this processor. */
+	private Privilege privilege;
+
+	/** MIPS registers accessible to the kernel. */
+	private int registers[] = new int[numUserRegisters];
+
+	/** The registered target of the delayed load currently in progress. */
+	private int loadTarget = 0;
+
+	/** The bits to be modified by the delayed load currently in progress. */
+	private int loadMask;
+
+	/** The value to be loaded by the delayed load currently in progress. */
+	private int loadValue;
+
+	/** <tt>true</tt> if using a software-managed TLB. */
+	private boolean usingTLB;
+
+	/** Number of TLB entries. */
+	private int tlbSize = 4;
+
+	/** Number of TLB entries in each set. */
+	private int tlbAssociativity;
+
+	/** Number of TLB sets. */
+	private int tlbSets;
+
+	/** The address space identifier of the running program. */
+	private int asid = 0;
+
+	/** The binary instruction trace, or <tt>null</tt> if not recording. */
+	private TraceRecorder trace = null;
+
+	/** The simulated caches, or <tt>null</tt> if they are disabled. */
+	private CacheHierarchy caches = null;
+
+	/**
+	 * The ticks the instructions not yet charged to the simulated time have
+	 * stalled for in the caches.
+	 */
+	private long stallTicks = 0;
+
+	/**
+	 * Either an associative or direct-mapped set of translation entries,
+	 * depending on whether there is a TLB.
+	 */
+	private TranslationEntry[] translations;
+
+	/** Size of a page, in bytes. */
+	public static final int pageSize = 0x400;
+
+	/** Number of pages in a 32-bit address space. */
+	public static final int maxPages = (int) (0x100000000L / pageSize);
+
+	/** Number of physical pages in memory. */
+	private int numPhysPages;
+
+	/** Main memory for user programs. */
+	private PhysicalMemory mainMemory;
+
+	/**
+	 * Predecoded instructions, indexed by physical page and then by word
+	 * within the page. The array for a page is allocated the first time an
+	 * instruction is fetched from it.
+	 */
+	private DecodedInstruction[][] decodeCache;
+
+	/**
+	 * Translated basic blocks, indexed like <tt>decodeCache</tt> by the
+	 * physical address of their first instruction. <tt>null</tt> unless the
+	 * <tt>Processor.engine</tt> key selects the block engine.
+	 */
+	private Block[][] blockCache = null;
+
+	/**
+	 * Incremented every time the kernel gets a chance to run. A block is
+	 * checked against memory before its first use in each epoch.
+	 */
+	private int blockEpoch = 0;
+
+	/** The number of instructions completed in the current block pass. */
+	private long blockTicks;
+
+	/** Executes the instructions the block engine does not translate. */
+	private Instruction interpreter;
+
+	/** The maximum number of instructions in a block. */
+	private static final int maxBlockLength = 64;
+
+	/** Kinds of memory access, each with its own remembered translation. */
+	private static final int accessFetch = 0, accessLoad = 1, accessStore = 2;
+
+	/**
+	 * The virtual page of the last page table translation of each kind of
+	 * access, or -1 if there is none.
+	 */
+	private int[] cachedVPN = { -1, -1, -1 };
+
+	/** The page table entries used by the remembered translations. */
+	private TranslationEntry[] cachedEntry = new TranslationEntry[3];
+
+	/** The physical address of the start of each remembered page. */
+	private int[] cachedBase = new int[3];
+
+	/** <tt>true</tt> to never use <tt>runFast()</tt> or <tt>runBlocks()</tt>. */
+	private boolean generalOnly = false;
+
+	/** <tt>true</tt> if the speed of user code is measured. */
+	private boolean benchmark;
+
+	/** The engine that ran user code last, for the benchmark report. */
+	private String engineUsed;
+
+	/** The wall clock time at which user code first ran, in nanoseconds. */
+	private long startTime = 0;
+
+	/** The number of user instructions executed. */
+	private long numInstructions = 0;
+
+	/** Returned by <tt>step()</tt> when no exception occurred. */
+	private static final int exceptionNone = -1;
+
+	/** <tt>true</tt> if the last exception from <tt>step()</tt> has an address. */
+	private boolean faultHasVAddr;
+
+	/** The bad virtual address of the last exception from <tt>step()</tt>. */
+	private int faultVAddr;
+
+	/** The kernel exception handler, called on every user exception. */
+	private Runnable exceptionHandler = null;
+
+	private static final char dbgProcessor = 'p';
+
+	private static final char dbgDisassemble = 'm';
+
+	private static final char dbgFullDisassemble = 'M';
+
+	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
+		public void flushPipe() {
+			finishLoad();
+		}
+	}
+
+	private class MipsException extends Exception {
+		public MipsException(int cause) {
+			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+
+			this.cause = cause;
+		}
+
+		public MipsException(int cause, int badVAddr) {
+			this(cause);
+
+			hasBadVAddr = true;
+			this.badVAddr = badVAddr;
+		}
+
+		public void handle() {
+			handleException(cause, hasBadVAddr, badVAddr);
+		}
+
+		private boolean hasBadVAddr = false;
+
+		private int cause, badVAddr;
+	}
+
+	private class Instruction {
+		public void run() throws MipsException {
+			// hopefully this looks familiar to 152 students?
+			fetch();
+			decode();
+			execute();
+			writeBack();
+		}
+
+		private boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		private void fetch() throws MipsException {
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+						+ "\t");
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			paddr = translate(registers[regPC], 4, accessFetch);
+			value = mainMemory.readWord(paddr);
+
+			if (caches != null)
+				stallTicks += caches.fetch(paddr);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
+		}
+
+		/**
+		 * Execute an instruction that has already been fetched and decoded.
+		 * Used by the block engine for instructions it does not translate.
+		 * 
+		 * @param info the decoded instruction.
+		 * @exception MipsException if the instruction caused an exception.
+		 */
+		public void run(DecodedInstruction info) throws MipsException {
+			load(info);
+			execute();
+			writeBack();
+		}
+
+		private void decode() {
+			DecodedInstruction info = decoded(paddr, value);
+			load(info);
+
+			if (trace != null) {
+				if (info.traceMnemonic == 0)
+					info.traceMnemonic = trace.mnemonic(info.name);
+				trace.decoded(info.traceMnemonic);
+			}
+
+			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+				print();
+		}
+
+		private void load(DecodedInstruction info) {
+			op = info.op;
+			rs = info.rs;
+			rt = info.rt;
+			rd = info.rd;
+			sh = info.sh;
+			func = info.func;
+			target = info.target;
+			imm = info.imm;
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			size = info.size;
+			dstReg = info.dstReg;
+
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
+
+			// get jtarget
+			if (format == Mips.RFMT)
+				jtarget = registers[rs];
+			else if (format == Mips.IFMT)
+				jtarget = registers[regNextPC] + (imm << 2);
+			else if (format == Mips.JFMT)
+				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+			else
+				jtarget = -1;
+
+			// get addr
+			addr = registers[rs] + imm;
+
+			// get src1
+			if (test(Mips.SRC1SH))
+				src1 = sh;
+			else
+				src1 = registers[rs];
+
+			// get src2
+			if (test(Mips.SRC2IMM))
+				src2 = imm;
+			else
+				src2 = registers[rt];
+
+			if (test(Mips.UNSIGNED)) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
+		}
+
+		private void print() {
+			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
+					&& !Lib.test(dbgFullDisassemble))
+				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+						+ "\t");
+
+			if (operation == Mips.INVALID) {
+				System.out.print("invalid: op=" + Lib.toHexString(op, 2)
+						+ " rs=" + Lib.toHexString(rs, 2) + " rt="
+						+ Lib.toHexString(rt, 2) + " rd="
+						+ Lib.toHexString(rd, 2) + " sh="
+						+ Lib.toHexString(sh, 2) + " func="
+						+ Lib.toHexString(func, 2) + "\n");
 				return;
+			}
+
+			int spaceIndex = name.indexOf(' ');
+			Lib.assertTrue(spaceIndex != -1
+					&& spaceIndex == name.lastIndexOf(' '));
+
+			String instname = name.substring(0, spaceIndex);
+			char[] args = name.substring(spaceIndex + 1).toCharArray();
+
+			System.out.print(instname + "\t");
+
+			int minCharsPrinted = 0, maxCharsPrinted = 0;
+
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case Mips.RS:
+					System.out.print("$" + rs);
+					minCharsPrinted += 2;
+					maxCharsPrinted += 3;
+
+					if (Lib.test(dbgFullDisassemble)) {
+						System.out
+								.print("#0x" + Lib.toHexString(registers[rs]));
+						minCharsPrinted += 11;
+						maxCharsPrinted += 11;
+					}
+					break;
+				case Mips.RT:
+					System.out.print("$" + rt);
+					minCharsPrinted += 2;
+					maxCharsPrinted += 3;
+
+					if (Lib.test(dbgFullDisassemble)
+							&& (i != 0 || !test(Mips.DST))
+							&& !test(Mips.DELAYEDLOAD)) {
+						System.out
+								.print("#0x" + Lib.toHexString(registers[rt]));
+						minCharsPrinted += 11;
+						maxCharsPrinted += 11;
+					}
+					break;
+				case Mips.RETURNADDRESS:
+					if (rd == 31)
+						continue;
+				case Mips.RD:
+					System.out.print("$" + rd);
+					minCharsPrinted += 2;
+					maxCharsPrinted += 3;
+					break;
+				case Mips.IMM:
+					System.out.print(imm);
+					minCharsPrinted += 1;
+					maxCharsPrinted += 6;
+					break;
+				case Mips.SHIFTAMOUNT:
+					System.out.print(sh);
+					minCharsPrinted += 1;
+					maxCharsPrinted += 2;
+					break;
+				case Mips.ADDR:
+					System.out.print(imm + "($" + rs);
+					minCharsPrinted += 4;
+					maxCharsPrinted += 5;
+
+					if (Lib.test(dbgFullDisassemble)) {
+						System.out
+								.print("#0x" + Lib.toHexString(registers[rs]));
+						minCharsPrinted += 11;
+						maxCharsPrinted += 11;
+					}
+
+					System.out.print(")");
+					break;
+				case Mips.TARGET:
+					System.out.print("0x" + Lib.toHexString(jtarget));
+					minCharsPrinted += 10;
+					maxCharsPrinted += 10;
+					break;
+				case Mips.FS:
+				case Mips.FT:
+				case Mips.FD:
+					int fpr = (args[i] == Mips.FS) ? rd
+							: (args[i] == Mips.FT) ? rt : sh;
+					System.out.print("$f" + fpr);
+					minCharsPrinted += 3;
+					maxCharsPrinted += 4;
+
+					if (Lib.test(dbgFullDisassemble)) {
+						System.out.print("#0x"
+								+ Lib.toHexString(registers[regF0 + fpr]));
+						minCharsPrinted += 11;
+						maxCharsPrinted += 11;
+					}
+					break;
+				default:
+					Lib.assertTrue(false);
+				}
+				if (i + 1 < args.length) {
+					System.out.print(", ");
+					minCharsPrinted += 2;
+					maxCharsPrinted += 2;
+				}
+				else {
+					// most separation possible is tsi, 5+1+1=7,
+					// thankfully less than 8 (makes this possible)
+					Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
+					// longest string is stj, which is 40-42 chars w/ -d M;
+					// go for 48
+					while ((minCharsPrinted % 8) != 0) {
+						System.out.print(" ");
+						minCharsPrinted++;
+						maxCharsPrinted++;
+					}
+					while (minCharsPrinted < 48) {
+						System.out.print("\t");
+						minCharsPrinted += 8;
+					}
+				}
+			}
+
+			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
+					&& !Lib.test(dbgFullDisassemble))
+				System.out.print("\n");
+		}
+
+		private void execute() throws MipsException {
+			int value;
+
+			switch (operation) {
+			case Mips.ADD:
+			case Mips.SUB:
+			case Mips.SLL:
+			case Mips.SRA:
+			case Mips.SRL:
+			case Mips.SLT:
+			case Mips.AND:
+			case Mips.OR:
+			case Mips.NOR:
+			case Mips.XOR:
+			case Mips.LUI:
+				dst = alu(operation, src1, src2, imm);
+				break;
+			case Mips.MULT:
+				dst = src1 * src2;
+				registers[regLo] = (int) Lib.extract(dst, 0, 32);
+				registers[regHi] = (int) Lib.extract(dst, 32, 32);
+				break;
+			case Mips.DIV:
+				try {
+					registers[regLo] = (int) (src1 / src2);
+					registers[regHi] = (int) (src1 % src2);
+					if (registers[regLo] * src2 + registers[regHi] != src1)
+						throw new ArithmeticException();
+				}
+				catch (ArithmeticException e) {
+					throw new MipsException(exceptionOverflow);
+				}
+				break;
+
+			case Mips.BEQ:
+			case Mips.BNE:
+			case Mips.BGEZ:
+			case Mips.BGTZ:
+			case Mips.BLEZ:
+			case Mips.BLTZ:
+				branch = branchTaken(operation, src1, src2);
+				break;
+
+			case Mips.JUMP:
+				break;
+
+			case Mips.MFLO:
+				dst = registers[regLo];
+				break;
+			case Mips.MFHI:
+				dst = registers[regHi];
+				break;
+			case Mips.MTLO:
+				registers[regLo] = (int) src1;
+				break;
+			case Mips.MTHI:
+				registers[regHi] = (int) src1;
+				break;
+
+			case Mips.SYSCALL:
+				throw new MipsException(exceptionSyscall);
+
+			case Mips.LOAD:
+				value = readMem(addr, size);
+
+				if (!test(Mips.UNSIGNED))
+					dst = Lib.extend(value, 0, size * 8);
+				else
+					dst = value;
+
+				break;
+
+			case Mips.LWL:
+			case Mips.LWR:
+				value = readMem(addr & ~0x3, 4);
+
+				mask = partialMask(operation, addr);
+				dst = partialShift(operation, addr, value);
+				addr &= ~0x3;
+
+				break;
+
+			case Mips.STORE:
+				writeMem(addr, size, (int) src2);
+				break;
+
+			case Mips.SWL:
+			case Mips.SWR:
+				value = readMem(addr & ~0x3, 4);
+
+				// merge values
+				mask = partialMask(operation, addr);
+				dst = (partialShift(operation, addr, (int) src2) & mask)
+						| (value & ~mask);
+
+				writeMem(addr & ~0x3, 4, (int) dst);
+				break;
+
+			case Mips.MFC1:
+				dst = registers[regF0 + rd];
+				break;
+			case Mips.CFC1:
+				if (rd == 0)
+					dst = fpImplementation;
+				else if (rd == 31)
+					dst = registers[regFCSR];
+				else
+					dst = 0;
+				break;
+			case Mips.MTC1:
+				registers[regF0 + rd] = (int) src2;
+				break;
+			case Mips.CTC1:
+				if (rd == 31)
+					registers[regFCSR] = (int) src2;
+				break;
+
+			case Mips.BC1:
+				branch = (Lib.test(fcsrCondition, registers[regFCSR]) == Lib
+						.test(1, rt));
+				break;
+
+			case Mips.FPU:
+				executeFPU();
+				break;
+
+			case Mips.LWC1:
+				registers[regF0 + rt] = readMem(addr, 4);
+				break;
 
-			exceptionHandler.run();
+			case Mips.LDC1:
+				if (Lib.test(1, rt))
+					throw new MipsException(exceptionIllegalInstruction);
+				if ((addr & 0x7) != 0)
+					throw new MipsException(exceptionAddressError, addr);
+
+				// both words are on the same page, so if the first can be
+				// read, so can the second
+				value = readMem(addr, 4);
+				registers[regF0 + rt + 1] = readMem(addr + 4, 4);
+				registers[regF0 + rt] = value;
+				break;
+
+			case Mips.SWC1:
+				writeMem(addr, 4, registers[regF0 + rt]);
+				break;
+
+			case Mips.SDC1:
+				if (Lib.test(1, rt))
+					throw new MipsException(exceptionIllegalInstruction);
+				if ((addr & 0x7) != 0)
+					throw new MipsException(exceptionAddressError, addr);
+
+				writeMem(addr, 4, registers[regF0 + rt]);
+				writeMem(addr + 4, 4, registers[regF0 + rt + 1]);
+				break;
+
+			case Mips.UNIMPL:
+				System.err.println("Warning: encountered unimplemented inst");
+
+			case Mips.INVALID:
+				throw new MipsException(exceptionIllegalInstruction);
+
+			default:
+				Lib.assertNotReached();
+			}
 		}
 
-		private boolean hasBadVAddr = false;
+		/**
+		 * Execute a COP1 arithmetic, conversion or compare instruction. Both
+		 * precisions are computed in double precision; single precision
+		 * results are then rounded once, which for these operations gives the
+		 * same result as computing in single precision directly. Results are
+		 * always rounded to nearest, except by <tt>cvt.w</tt>, which honors
+		 * the rounding mode in FCR31.
+		 */
+		private void executeFPU() throws MipsException {
+			int fmt = rs, ft = rt, fs = rd, fd = sh;
+
+			boolean srcDouble = (fmt == Mips.FMTD);
+			boolean dstDouble;
+			if (func == Mips.CVTD)
+				dstDouble = true;
+			else if (func == Mips.CVTS || func == Mips.CVTW)
+				dstDouble = false;
+			else
+				dstDouble = srcDouble;
 
-		private int cause, badVAddr;
-	}
+			// doubles must be in even/odd register pairs
+			if ((srcDouble && Lib.test(1, fs | ft))
+					|| (dstDouble && Lib.test(1, fd)))
+				throw new MipsException(exceptionIllegalInstruction);
 
-	private class Instruction {
-		public void run() throws MipsException {
-			// hopefully this looks familiar to 152 students?
-			fetch();
-			decode();
-			execute();
-			writeBack();
+			// these only touch the sign bit, so copy the bits exactly
+			if (func == Mips.FMOV || func == Mips.FABS || func == Mips.FNEG) {
+				int high = srcDouble ? 1 : 0;
+				int sign = registers[regF0 + fs + high];
+
+				if (func == Mips.FABS)
+					sign &= 0x7FFFFFFF;
+				else if (func == Mips.FNEG)
+					sign ^= 0x80000000;
+
+				if (srcDouble)
+					registers[regF0 + fd] = registers[regF0 + fs];
+				registers[regF0 + fd + high] = sign;
+				return;
+			}
+
+			double a, b;
+			if (fmt == Mips.FMTW) {
+				a = registers[regF0 + fs];
+				b = 0;
+			}
+			else if (srcDouble) {
+				a = readDouble(fs);
+				b = readDouble(ft);
+			}
+			else {
+				a = Float.intBitsToFloat(registers[regF0 + fs]);
+				b = Float.intBitsToFloat(registers[regF0 + ft]);
+			}
+
+			double result;
+			switch (func) {
+			case Mips.FADD:
+				result = a + b;
+				break;
+			case Mips.FSUB:
+				result = a - b;
+				break;
+			case Mips.FMUL:
+				result = a * b;
+				break;
+			case Mips.FDIV:
+				result = a / b;
+				break;
+			case Mips.FSQRT:
+				result = Math.sqrt(a);
+				break;
+			case Mips.CVTS:
+			case Mips.CVTD:
+				result = a;
+				break;
+			case Mips.CVTW:
+				registers[regF0 + fd] = roundToWord(a);
+				return;
+			default:
+				// c.cond: bit 0 of the condition is unordered, bit 1 equal,
+				// bit 2 less than
+				boolean unordered = Double.isNaN(a) || Double.isNaN(b);
+				boolean condition = (Lib.test(0x1, func) && unordered)
+						|| (Lib.test(0x2, func) && a == b)
+						|| (Lib.test(0x4, func) && a < b);
+
+				if (condition)
+					registers[regFCSR] |= fcsrCondition;
+				else
+					registers[regFCSR] &= ~fcsrCondition;
+				return;
+			}
+
+			if (dstDouble)
+				writeDouble(fd, result);
+			else
+				registers[regF0 + fd] = Float.floatToRawIntBits((float) result);
 		}
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
+		private double readDouble(int reg) {
+			return Double.longBitsToDouble(((long) registers[regF0 + reg + 1] << 32)
+					| (registers[regF0 + reg] & 0xFFFFFFFFL));
 		}
 
-		private void fetch() throws MipsException {
+		private void writeDouble(int reg, double value) {
+			long bits = Double.doubleToRawLongBits(value);
+			registers[regF0 + reg] = (int) bits;
+			registers[regF0 + reg + 1] = (int) (bits >>> 32);
+		}
+
+		/**
+		 * Convert to a word using the rounding mode in FCR31. Values that do
+		 * not fit, and NaNs, give the default invalid result.
+		 */
+		private int roundToWord(double a) {
+			switch (registers[regFCSR] & 0x3) {
+			case 0: // nearest
+				a = Math.rint(a);
+				break;
+			case 1: // toward zero
+				a = (a < 0) ? Math.ceil(a) : Math.floor(a);
+				break;
+			case 2: // toward +infinity
+				a = Math.ceil(a);
+				break;
+			default: // toward -infinity
+				a = Math.floor(a);
+				break;
+			}
+
+			if (Double.isNaN(a) || a < Integer.MIN_VALUE
+					|| a > Integer.MAX_VALUE)
+				return Integer.MAX_VALUE;
+
+			return (int) a;
+		}
+
+		private void writeBack() throws MipsException {
+			// if instruction is signed, but carry bit !+ sign bit, throw
+			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
+				throw new MipsException(exceptionOverflow);
+
+			if (test(Mips.DELAYEDLOAD))
+				delayedLoad(dstReg, (int) dst, mask);
+			else
+				finishLoad();
+
+			if (test(Mips.LINK))
+				dst = nextPC;
+
+			if (test(Mips.DST) && dstReg != 0)
+				registers[dstReg] = (int) dst;
+
+			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+				if (Lib.test(dbgFullDisassemble)) {
+					System.out.print("#0x" + Lib.toHexString((int) dst));
+					if (test(Mips.DELAYEDLOAD))
+						System.out.print(" (delayed load)");
+				}
+			}
+
+			if (test(Mips.BRANCH) && branch) {
+				nextPC = jtarget;
+			}
+
+			advancePC(nextPC);
+
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
 					|| Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
+				System.out.print("\n");
+		}
+
+		// state used to execute a single instruction
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size;
+
+		int addr, nextPC, jtarget, dstReg;
+
+		long src1, src2, dst;
+
+		int mask;
 
-			value = readMem(registers[regPC], 4);
+		boolean branch;
+	}
+
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and not on any register values. Fetching a word from a physical
+	 * address that already has an entry reuses that entry instead of decoding
+	 * the word again.
+	 * 
+	 * <p>
+	 * Each entry remembers the word it was decoded from, and is checked
+	 * against the word actually fetched before it is used. Stores through
+	 * <tt>writeMem()</tt>, kernel writes through <tt>getMemory()</tt>, and
+	 * page remaps therefore never need to invalidate the cache explicitly;
+	 * a changed word is simply decoded again.
+	 */
+	private static class DecodedInstruction {
+		DecodedInstruction(int value) {
+			decode(value);
 		}
 
-		private void decode() {
+		void decode(int value) {
+			this.value = value;
+			traceMnemonic = 0;
+
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
@@ -664,6 +2303,9 @@ public final class Processor {
 			case 1:
 				info = Mips.regimmtable[rt];
 				break;
+			case 0x11:
+				info = Mips.cop1(rs, rt, func);
+				break;
 			default:
 				info = Mips.optable[op];
 				break;
@@ -674,24 +2316,18 @@ public final class Processor {
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
-			if (test(Mips.SIZEB))
+			if (Lib.test(Mips.SIZEB, flags))
 				size = 1;
-			else if (test(Mips.SIZEH))
+			else if (Lib.test(Mips.SIZEH, flags))
 				size = 2;
-			else if (test(Mips.SIZEW))
+			else if (Lib.test(Mips.SIZEW, flags))
 				size = 4;
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
-			if (test(Mips.DSTRA))
+			if (Lib.test(Mips.DSTRA, flags))
 				dstReg = regRA;
 			else if (format == Mips.IFMT)
 				dstReg = rt;
@@ -700,391 +2336,351 @@ public final class Processor {
 			else
 				dstReg = -1;
 
-			// get jtarget
-			if (format == Mips.RFMT)
-				jtarget = registers[rs];
-			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
-			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
-			else
-				jtarget = -1;
-
 			// get imm
-			if (test(Mips.UNSIGNED)) {
+			if (Lib.test(Mips.UNSIGNED, flags))
 				imm &= 0xFFFF;
-			}
-
-			// get addr
-			addr = registers[rs] + imm;
-
-			// get src1
-			if (test(Mips.SRC1SH))
-				src1 = sh;
-			else
-				src1 = registers[rs];
-
-			// get src2
-			if (test(Mips.SRC2IMM))
-				src2 = imm;
-			else
-				src2 = registers[rt];
-
-			if (test(Mips.UNSIGNED)) {
-				src1 &= 0xFFFFFFFFL;
-				src2 &= 0xFFFFFFFFL;
-			}
-
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				print();
 		}
 
-		private void print() {
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
-
-			if (operation == Mips.INVALID) {
-				System.out.print("invalid: op=" + Lib.toHexString(op, 2)
-						+ " rs=" + Lib.toHexString(rs, 2) + " rt="
-						+ Lib.toHexString(rt, 2) + " rd="
-						+ Lib.toHexString(rd, 2) + " sh="
-						+ Lib.toHexString(sh, 2) + " func="
-						+ Lib.toHexString(func, 2) + "\n");
-				return;
-			}
-
-			int spaceIndex = name.indexOf(' ');
-			Lib.assertTrue(spaceIndex != -1
-					&& spaceIndex == name.lastIndexOf(' '));
-
-			String instname = name.substring(0, spaceIndex);
-			char[] args = name.substring(spaceIndex + 1).toCharArray();
+		int value, op, rs, rt, rd, sh, func, target, imm;
 
-			System.out.print(instname + "\t");
+		int operation, format, flags;
 
-			int minCharsPrinted = 0, maxCharsPrinted = 0;
+		String name;
 
-			for (int i = 0; i < args.length; i++) {
-				switch (args[i]) {
-				case Mips.RS:
-					System.out.print("$" + rs);
-					minCharsPrinted += 2;
-					maxCharsPrinted += 3;
+		int size, dstReg;
 
-					if (Lib.test(dbgFullDisassemble)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rs]));
-						minCharsPrinted += 11;
-						maxCharsPrinted += 11;
-					}
-					break;
-				case Mips.RT:
-					System.out.print("$" + rt);
-					minCharsPrinted += 2;
-					maxCharsPrinted += 3;
+		/** The mnemonic number in the binary trace, or 0 if not yet known. */
+		int traceMnemonic = 0;
+	}
 
-					if (Lib.test(dbgFullDisassemble)
-							&& (i != 0 || !test(Mips.DST))
-							&& !test(Mips.DELAYEDLOAD)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rt]));
-						minCharsPrinted += 11;
-						maxCharsPrinted += 11;
-					}
-					break;
-				case Mips.RETURNADDRESS:
-					if (rd == 31)
-						continue;
-				case Mips.RD:
-					System.out.print("$" + rd);
-					minCharsPrinted += 2;
-					maxCharsPrinted += 3;
-					break;
-				case Mips.IMM:
-					System.out.print(imm);
-					minCharsPrinted += 1;
-					maxCharsPrinted += 6;
-					break;
-				case Mips.SHIFTAMOUNT:
-					System.out.print(sh);
-					minCharsPrinted += 1;
-					maxCharsPrinted += 2;
-					break;
-				case Mips.ADDR:
-					System.out.print(imm + "($" + rs);
-					minCharsPrinted += 4;
-					maxCharsPrinted += 5;
+	/**
+	 * A straight-line run of instructions on one physical page, translated
+	 * into a sequence of operations. A block ends after the delay slot of its
+	 * first branch or jump, at an instruction that always traps, at the end of
+	 * the page, or after <tt>maxBlockLength</tt> instructions.
+	 */
+	private class Block {
+		Block(int paddr) {
+			this.paddr = paddr;
 
-					if (Lib.test(dbgFullDisassemble)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rs]));
-						minCharsPrinted += 11;
-						maxCharsPrinted += 11;
-					}
+			int end = Math.min((paddr / pageSize + 1) * pageSize, paddr + 4
+					* maxBlockLength);
 
-					System.out.print(")");
-					break;
-				case Mips.TARGET:
-					System.out.print("0x" + Lib.toHexString(jtarget));
-					minCharsPrinted += 10;
-					maxCharsPrinted += 10;
+			Op[] ops = new Op[maxBlockLength];
+			int[] words = new int[maxBlockLength];
+			boolean delaySlot = false;
+
+			for (int addr = paddr; addr < end; addr += 4) {
+				int value = mainMemory.readWord(addr);
+				DecodedInstruction info = decoded(addr, value);
+
+				words[length] = value;
+				ops[length] = translate(info);
+				length++;
+
+				if (delaySlot || info.operation == Mips.SYSCALL
+						|| info.operation == Mips.UNIMPL
+						|| info.operation == Mips.INVALID)
 					break;
-				default:
-					Lib.assertTrue(false);
-				}
-				if (i + 1 < args.length) {
-					System.out.print(", ");
-					minCharsPrinted += 2;
-					maxCharsPrinted += 2;
-				}
-				else {
-					// most separation possible is tsi, 5+1+1=7,
-					// thankfully less than 8 (makes this possible)
-					Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
-					// longest string is stj, which is 40-42 chars w/ -d M;
-					// go for 48
-					while ((minCharsPrinted % 8) != 0) {
-						System.out.print(" ");
-						minCharsPrinted++;
-						maxCharsPrinted++;
-					}
-					while (minCharsPrinted < 48) {
-						System.out.print("\t");
-						minCharsPrinted += 8;
-					}
+
+				delaySlot = Lib.test(Mips.BRANCH, info.flags);
+			}
+
+			this.ops = new Op[length];
+			System.arraycopy(ops, 0, this.ops, 0, length);
+			this.words = new int[length];
+			System.arraycopy(words, 0, this.words, 0, length);
+
+			epoch = blockEpoch;
+		}
+
+		/**
+		 * Check that memory still holds the words this block was translated
+		 * from. Only done once per epoch, since only the kernel can change
+		 * memory without going through <tt>writeMem()</tt>.
+		 * 
+		 * @return <tt>true</tt> if this block can still be used.
+		 */
+		boolean verify() {
+			if (!valid)
+				return false;
+
+			if (epoch == blockEpoch)
+				return true;
+
+			for (int i = 0; i < length; i++) {
+				if (mainMemory.readWord(paddr + i * 4) != words[i]) {
+					valid = false;
+					return false;
 				}
 			}
 
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
-				System.out.print("\n");
+			epoch = blockEpoch;
+			return true;
 		}
 
-		private void execute() throws MipsException {
-			int value;
-			int preserved;
+		/**
+		 * Run this block from the start until it ends, control leaves it, a
+		 * store invalidates it, or the pass has used up its budget.
+		 * 
+		 * @param budget the number of instructions the pass may complete.
+		 * @exception MipsException if an instruction caused an exception.
+		 */
+		void run(long budget) throws MipsException {
+			int pc = registers[regPC];
+
+			for (int i = 0; i < length; i++) {
+				// the fetch of every instruction after the first hits the TLB
+				if (i > 0 && usingTLB)
+					privilege.stats.numTLBHits++;
+
+				if (caches != null)
+					stallTicks += caches.fetch(paddr + i * 4);
+
+				ops[i].execute();
+				blockTicks++;
+				pc += 4;
+
+				if (!valid || blockTicks + stallTicks >= budget
+						|| registers[regPC] != pc)
+					return;
+			}
+		}
 
-			switch (operation) {
+		/**
+		 * Choose the operation that executes the specified instruction. Any
+		 * instruction without a dedicated operation is executed by the
+		 * interpreter, which still saves the fetch and decode.
+		 */
+		private Op translate(DecodedInstruction info) {
+			int flags = info.flags;
+
+			switch (info.operation) {
 			case Mips.ADD:
-				dst = src1 + src2;
-				break;
 			case Mips.SUB:
-				dst = src1 - src2;
-				break;
-			case Mips.MULT:
-				dst = src1 * src2;
-				registers[regLo] = (int) Lib.extract(dst, 0, 32);
-				registers[regHi] = (int) Lib.extract(dst, 32, 32);
-				break;
-			case Mips.DIV:
-				try {
-					registers[regLo] = (int) (src1 / src2);
-					registers[regHi] = (int) (src1 % src2);
-					if (registers[regLo] * src2 + registers[regHi] != src1)
-						throw new ArithmeticException();
-				}
-				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
-				}
-				break;
-
 			case Mips.SLL:
-				dst = src2 << (src1 & 0x1F);
-				break;
 			case Mips.SRA:
-				dst = src2 >> (src1 & 0x1F);
-				break;
 			case Mips.SRL:
-				dst = src2 >>> (src1 & 0x1F);
-				break;
-
 			case Mips.SLT:
-				dst = (src1 < src2) ? 1 : 0;
-				break;
-
 			case Mips.AND:
-				dst = src1 & src2;
-				break;
 			case Mips.OR:
-				dst = src1 | src2;
-				break;
 			case Mips.NOR:
-				dst = ~(src1 | src2);
-				break;
 			case Mips.XOR:
-				dst = src1 ^ src2;
-				break;
 			case Mips.LUI:
-				dst = imm << 16;
-				break;
+				if (Lib.test(Mips.OVERFLOW, flags))
+					break;
+				return new AluOp(info);
+
+			case Mips.LOAD:
+				return new LoadOp(info);
+
+			case Mips.STORE:
+				return new StoreOp(info);
 
 			case Mips.BEQ:
-				branch = (src1 == src2);
-				break;
 			case Mips.BNE:
-				branch = (src1 != src2);
-				break;
-			case Mips.BGEZ:
-				branch = (src1 >= 0);
-				break;
-			case Mips.BGTZ:
-				branch = (src1 > 0);
-				break;
 			case Mips.BLEZ:
-				branch = (src1 <= 0);
-				break;
+			case Mips.BGTZ:
 			case Mips.BLTZ:
-				branch = (src1 < 0);
-				break;
+			case Mips.BGEZ:
+				return new BranchOp(info);
 
 			case Mips.JUMP:
-				break;
+				return new JumpOp(info);
+			}
 
-			case Mips.MFLO:
-				dst = registers[regLo];
-				break;
-			case Mips.MFHI:
-				dst = registers[regHi];
-				break;
-			case Mips.MTLO:
-				registers[regLo] = (int) src1;
-				break;
-			case Mips.MTHI:
-				registers[regHi] = (int) src1;
-				break;
+			return new InterpretedOp(info);
+		}
 
-			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+		/** The physical address of the first instruction. */
+		int paddr;
 
-			case Mips.LOAD:
-				value = readMem(addr, size);
+		/** The operations, one per instruction. */
+		Op[] ops;
 
-				if (!test(Mips.UNSIGNED))
-					dst = Lib.extend(value, 0, size * 8);
-				else
-					dst = value;
+		/** The instruction words the operations were translated from. */
+		int[] words;
 
-				break;
+		/** The number of instructions in this block. */
+		int length = 0;
 
-			case Mips.LWL:
-				value = readMem(addr & ~0x3, 4);
+		/** The epoch in which this block was last verified. */
+		int epoch;
 
-				// LWL shifts the input left so the addressed byte is highest
-				preserved = (3 - (addr & 0x3)) * 8; // number of bits to
-													// preserve
-				mask = -1 << preserved; // preserved bits are 0 in mask
-				dst = value << preserved; // shift input to correct place
-				addr &= ~0x3;
+		/** Cleared when the page this block was translated from is written. */
+		boolean valid = true;
 
-				break;
+		/** The block that was executed after this one last time. */
+		Block successor = null;
+	}
 
-			case Mips.LWR:
-				value = readMem(addr & ~0x3, 4);
+	/**
+	 * A single translated instruction. Each operation has the same effect on
+	 * the registers, memory and pending delayed load as the interpreter would
+	 * have when executing the instruction it was translated from.
+	 */
+	private abstract class Op {
+		abstract void execute() throws MipsException;
+	}
 
-				// LWR shifts the input right so the addressed byte is lowest
-				preserved = (addr & 0x3) * 8; // number of bits to preserve
-				mask = -1 >>> preserved; // preserved bits are 0 in mask
-				dst = value >>> preserved; // shift input to correct place
-				addr &= ~0x3;
+	private class InterpretedOp extends Op {
+		InterpretedOp(DecodedInstruction info) {
+			this.info = info;
+		}
 
-				break;
+		void execute() throws MipsException {
+			interpreter.run(info);
+		}
 
-			case Mips.STORE:
-				writeMem(addr, size, (int) src2);
-				break;
+		private DecodedInstruction info;
+	}
 
-			case Mips.SWL:
-				value = readMem(addr & ~0x3, 4);
+	/** An ALU instruction that cannot overflow, with a register result. */
+	private class AluOp extends Op {
+		AluOp(DecodedInstruction info) {
+			operation = info.operation;
+			rs = info.rs;
+			rt = info.rt;
+			sh = info.sh;
+			imm = info.imm;
+			dstReg = info.dstReg;
+			shiftAmount = Lib.test(Mips.SRC1SH, info.flags);
+			immediate = Lib.test(Mips.SRC2IMM, info.flags);
+			unsigned = Lib.test(Mips.UNSIGNED, info.flags);
+		}
 
-				// SWL shifts highest order byte into the addressed position
-				preserved = (3 - (addr & 0x3)) * 8;
-				mask = -1 >>> preserved;
-				dst = src2 >>> preserved;
+		void execute() {
+			long src1 = shiftAmount ? sh : registers[rs];
+			long src2 = immediate ? imm : registers[rt];
 
-				// merge values
-				dst = (dst & mask) | (value & ~mask);
+			if (unsigned) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
 
-				writeMem(addr & ~0x3, 4, (int) dst);
-				break;
+			long dst = alu(operation, src1, src2, imm);
 
-			case Mips.SWR:
-				value = readMem(addr & ~0x3, 4);
+			int nextPC = registers[regNextPC] + 4;
 
-				// SWR shifts the lowest order byte into the addressed position
-				preserved = (addr & 0x3) * 8;
-				mask = -1 << preserved;
-				dst = src2 << preserved;
+			finishLoad();
 
-				// merge values
-				dst = (dst & mask) | (value & ~mask);
+			if (dstReg != 0)
+				registers[dstReg] = (int) dst;
 
-				writeMem(addr & ~0x3, 4, (int) dst);
-				break;
+			advancePC(nextPC);
+		}
 
-			case Mips.UNIMPL:
-				System.err.println("Warning: encountered unimplemented inst");
+		private int operation, rs, rt, sh, imm, dstReg;
 
-			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+		private boolean shiftAmount, immediate, unsigned;
+	}
 
-			default:
-				Lib.assertNotReached();
-			}
+	private class LoadOp extends Op {
+		LoadOp(DecodedInstruction info) {
+			rs = info.rs;
+			rt = info.rt;
+			imm = info.imm;
+			size = info.size;
+			unsigned = Lib.test(Mips.UNSIGNED, info.flags);
 		}
 
-		private void writeBack() throws MipsException {
-			// if instruction is signed, but carry bit !+ sign bit, throw
-			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+		void execute() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
 
-			if (test(Mips.DELAYEDLOAD))
-				delayedLoad(dstReg, (int) dst, mask);
-			else
-				finishLoad();
+			if (!unsigned)
+				value = Lib.extend(value, 0, size * 8);
 
-			if (test(Mips.LINK))
-				dst = nextPC;
+			int nextPC = registers[regNextPC] + 4;
 
-			if (test(Mips.DST) && dstReg != 0)
-				registers[dstReg] = (int) dst;
+			delayedLoad(rt, value, 0xFFFFFFFF);
 
-			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-				if (Lib.test(dbgFullDisassemble)) {
-					System.out.print("#0x" + Lib.toHexString((int) dst));
-					if (test(Mips.DELAYEDLOAD))
-						System.out.print(" (delayed load)");
-				}
-			}
+			advancePC(nextPC);
+		}
 
-			if (test(Mips.BRANCH) && branch) {
-				nextPC = jtarget;
-			}
+		private int rs, rt, imm, size;
+
+		private boolean unsigned;
+	}
+
+	private class StoreOp extends Op {
+		StoreOp(DecodedInstruction info) {
+			rs = info.rs;
+			rt = info.rt;
+			imm = info.imm;
+			size = info.size;
+		}
+
+		void execute() throws MipsException {
+			int nextPC = registers[regNextPC] + 4;
+
+			writeMem(registers[rs] + imm, size, registers[rt]);
+
+			finishLoad();
 
 			advancePC(nextPC);
+		}
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("\n");
+		private int rs, rt, imm, size;
+	}
+
+	/** A conditional branch, linking to <tt>$ra</tt> if required. */
+	private class BranchOp extends Op {
+		BranchOp(DecodedInstruction info) {
+			operation = info.operation;
+			rs = info.rs;
+			rt = info.rt;
+			imm = info.imm;
+			link = Lib.test(Mips.LINK, info.flags);
 		}
 
-		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		void execute() {
+			boolean branch = branchTaken(operation, registers[rs],
+					registers[rt]);
 
-		int operation, format, flags;
+			int nextPC = registers[regNextPC] + 4;
+			int jtarget = registers[regNextPC] + (imm << 2);
 
-		String name;
+			finishLoad();
 
-		int size;
+			if (link)
+				registers[regRA] = nextPC;
 
-		int addr, nextPC, jtarget, dstReg;
+			advancePC(branch ? jtarget : nextPC);
+		}
 
-		long src1, src2, dst;
+		private int operation, rs, rt, imm;
 
-		int mask;
+		private boolean link;
+	}
 
-		boolean branch;
+	/** <tt>j</tt>, <tt>jal</tt>, <tt>jr</tt> and <tt>jalr</tt>. */
+	private class JumpOp extends Op {
+		JumpOp(DecodedInstruction info) {
+			register = (info.format == Mips.RFMT);
+			rs = info.rs;
+			target = info.target;
+			dstReg = Lib.test(Mips.LINK, info.flags) ? info.dstReg : 0;
+		}
+
+		void execute() {
+			int nextPC = registers[regNextPC] + 4;
+			int jtarget;
+			if (register)
+				jtarget = registers[rs];
+			else
+				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+
+			finishLoad();
+
+			if (dstReg != 0)
+				registers[dstReg] = nextPC;
+
+			advancePC(jtarget);
+		}
+
+		private boolean register;
+
+		private int rs, target, dstReg;
 	}
 
 	private static class Mips {
@@ -1116,7 +2712,9 @@ public final class Processor {
 				NOR = 12, XOR = 13, LUI = 14, MFLO = 21, MFHI = 22, MTLO = 23,
 				MTHI = 24, JUMP = 25, BEQ = 26, BNE = 27, BLEZ = 28, BGTZ = 29,
 				BLTZ = 30, BGEZ = 31, SYSCALL = 32, LOAD = 33, LWL = 36,
-				LWR = 37, STORE = 38, SWL = 39, SWR = 40, MAX = 40;
+				LWR = 37, STORE = 38, SWL = 39, SWR = 40, MFC1 = 41, CFC1 = 42,
+				MTC1 = 43, CTC1 = 44, BC1 = 45, FPU = 46, LWC1 = 47, SWC1 = 48,
+				LDC1 = 49, SDC1 = 50, MAX = 50;
 
 		static final int IFMT = 1, JFMT = 2, RFMT = 3;
 
@@ -1128,8 +2726,73 @@ public final class Processor {
 
 		static final char RS = 's', RT = 't', RD = 'd', IMM = 'i',
 				SHIFTAMOUNT = 'h', ADDR = 'a', // imm(rs)
-				TARGET = 'j', RETURNADDRESS = 'r'; // rd, or none if rd=31;
+				TARGET = 'j', RETURNADDRESS = 'r', // rd, or none if rd=31;
 													// can't be last
+				FS = 'S', FT = 'T', FD = 'D'; // $f(rd), $f(rt), $f(sh)
+
+		// COP1 formats (rs) and arithmetic functions
+		static final int FMTS = 16, FMTD = 17, FMTW = 20;
+
+		static final int FADD = 0, FSUB = 1, FMUL = 2, FDIV = 3, FSQRT = 4,
+				FABS = 5, FMOV = 6, FNEG = 7, CVTS = 32, CVTD = 33, CVTW = 36,
+				FCOMPARE = 48;
+
+		/**
+		 * Look up a COP1 instruction, which is decoded by its <i>rs</i> field,
+		 * then by <i>rt</i> for branches or <i>func</i> for arithmetic.
+		 */
+		static Mips cop1(int rs, int rt, int func) {
+			switch (rs) {
+			case 8:
+				return bc1table[rt];
+			case FMTS:
+				return fpstable[func];
+			case FMTD:
+				return fpdtable[func];
+			case FMTW:
+				return fpwtable[func];
+			default:
+				return cop1table[rs];
+			}
+		}
+
+		private static Mips[] fputable(String fmt, boolean arithmetic) {
+			Mips[] table = new Mips[64];
+			for (int i = 0; i < table.length; i++)
+				table[i] = new Mips();
+
+			if (arithmetic) {
+				table[FADD] = new Mips(FPU, "add." + fmt + " DST", RFMT, 0);
+				table[FSUB] = new Mips(FPU, "sub." + fmt + " DST", RFMT, 0);
+				table[FMUL] = new Mips(FPU, "mul." + fmt + " DST", RFMT, 0);
+				table[FDIV] = new Mips(FPU, "div." + fmt + " DST", RFMT, 0);
+				table[FSQRT] = new Mips(FPU, "sqrt." + fmt + " DS", RFMT, 0);
+				table[FABS] = new Mips(FPU, "abs." + fmt + " DS", RFMT, 0);
+				table[FMOV] = new Mips(FPU, "mov." + fmt + " DS", RFMT, 0);
+				table[FNEG] = new Mips(FPU, "neg." + fmt + " DS", RFMT, 0);
+				table[CVTW] = new Mips(FPU, "cvt.w." + fmt + " DS", RFMT, 0);
+
+				String[] conditions = { "f", "un", "eq", "ueq", "olt", "ult",
+						"ole", "ule", "sf", "ngle", "seq", "ngl", "lt", "nge",
+						"le", "ngt" };
+				for (int i = 0; i < conditions.length; i++)
+					table[FCOMPARE + i] = new Mips(FPU, "c." + conditions[i]
+							+ "." + fmt + " ST", RFMT, 0);
+			}
+
+			if (!fmt.equals("s"))
+				table[CVTS] = new Mips(FPU, "cvt.s." + fmt + " DS", RFMT, 0);
+			if (!fmt.equals("d"))
+				table[CVTD] = new Mips(FPU, "cvt.d." + fmt + " DS", RFMT, 0);
+
+			return table;
+		}
+
+		static final Mips[] fpstable = fputable("s", true);
+
+		static final Mips[] fpdtable = fputable("d", true);
+
+		static final Mips[] fpwtable = fputable("w", false);
 
 		static final Mips[] optable = {
 				new Mips(), // special
@@ -1148,7 +2811,9 @@ public final class Processor {
 				new Mips(OR, "ori tsi", IFMT, DST | SRC2IMM | UNSIGNED),
 				new Mips(XOR, "xori tsi", IFMT, DST | SRC2IMM | UNSIGNED),
 				new Mips(LUI, "lui ti", IFMT, DST | SRC2IMM | UNSIGNED),
-				new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips(), // cop0
+				new Mips(), // cop1
+				new Mips(), new Mips(),
 				new Mips(BEQ, "beql stj", IFMT, BRANCH),
 				new Mips(BNE, "bnel stj", IFMT, BRANCH),
 				new Mips(BLEZ, "blezl sj", IFMT, BRANCH),
@@ -1167,10 +2832,13 @@ public final class Processor {
 				new Mips(SWL, "swl ta", IFMT, 0),
 				new Mips(STORE, "sw ta", IFMT, SIZEW), new Mips(), new Mips(),
 				new Mips(SWR, "swr ta", IFMT, 0), new Mips(),
-				new Mips(UNIMPL, "ll "), new Mips(), new Mips(), new Mips(),
-				new Mips(), new Mips(), new Mips(), new Mips(),
-				new Mips(UNIMPL, "sc "), new Mips(), new Mips(), new Mips(),
-				new Mips(), new Mips(), new Mips(), new Mips(), };
+				new Mips(UNIMPL, "ll "),
+				new Mips(LWC1, "lwc1 Ta", IFMT, SIZEW), new Mips(), new Mips(),
+				new Mips(), new Mips(LDC1, "ldc1 Ta", IFMT, 0), new Mips(),
+				new Mips(), new Mips(UNIMPL, "sc "),
+				new Mips(SWC1, "swc1 Ta", IFMT, SIZEW), new Mips(), new Mips(),
+				new Mips(), new Mips(SDC1, "sdc1 Ta", IFMT, 0), new Mips(),
+				new Mips(), };
 
 		static final Mips[] specialtable = {
 				new Mips(SLL, "sll dth", RFMT, DST | SRC1SH), new Mips(),
@@ -1231,5 +2899,33 @@ public final class Processor {
 				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
 				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
 				new Mips(), new Mips() };
+
+		static final Mips[] cop1table = {
+				new Mips(MFC1, "mfc1 tS", IFMT, DELAYEDLOAD), new Mips(),
+				new Mips(CFC1, "cfc1 td", IFMT, DELAYEDLOAD), new Mips(),
+				new Mips(MTC1, "mtc1 tS", IFMT, 0), new Mips(),
+				new Mips(CTC1, "ctc1 td", IFMT, 0), new Mips(),
+				new Mips(), // bc1
+				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips(), new Mips(),
+				new Mips(), // s
+				new Mips(), // d
+				new Mips(), new Mips(),
+				new Mips(), // w
+				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips() };
+
+		static final Mips[] bc1table = {
+				new Mips(BC1, "bc1f j", IFMT, BRANCH),
+				new Mips(BC1, "bc1t j", IFMT, BRANCH),
+				new Mips(BC1, "bc1fl j", IFMT, BRANCH),
+				new Mips(BC1, "bc1tl j", IFMT, BRANCH), new Mips(), new Mips(),
+				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips() };
 	}
 }
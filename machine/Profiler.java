@@ -0,0 +1,267 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A sampling profiler for user programs. Every <tt>Profiler.interval</tt>
+ * ticks, a profiler interrupt records the PC of the running user program and
+ * a best-effort call stack, found by walking the stack frames described in
+ * the program's COFF symbol table. Samples that interrupt the kernel are
+ * counted as a single <tt>[kernel]</tt> frame.
+ *
+ * <p>
+ * When the machine halts, the samples are written to <tt>Profiler.file</tt>
+ * in the collapsed stack format read by flame graph tools: one line for each
+ * distinct stack, with the frames outermost first and separated by
+ * semicolons, followed by the number of samples.
+ *
+ * <p>
+ * The kernel tells the profiler which program each address space identifier
+ * belongs to with <tt>addProgram()</tt>. Samples from an address space
+ * without a program are recorded with unsymbolized addresses.
+ */
+public final class Profiler {
+	/**
+	 * Allocate a new profiler, and schedule the first sample.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	public Profiler(Privilege privilege) {
+		System.out.println(" profiler");
+
+		this.privilege = privilege;
+
+		interval = Config.getInteger("Profiler.interval");
+		Lib.assertTrue(interval > 0, "Profiler.interval must be positive");
+		fileName = Config.getString("Profiler.file", "nachos.folded");
+
+		sampleHandler = new Runnable() {
+			public void run() {
+				sample();
+			}
+		};
+
+		privilege.interrupt.schedule(interval, "profiler", sampleHandler);
+	}
+
+	/**
+	 * Attribute the samples taken in the specified address space to a
+	 * program, whose symbol table is used to walk and name its stack frames.
+	 * Reading the symbol table takes simulated time, like any file read.
+	 *
+	 * @param asid the address space identifier the program runs with.
+	 * @param name the name of the program.
+	 * @param coff the program's executable.
+	 */
+	public void addProgram(int asid, String name, Coff coff) {
+		programs.put(asid, new Program(name + ":" + asid, coff
+				.getProcedures()));
+	}
+
+	private void sample() {
+		privilege.interrupt.schedule(interval, "profiler", sampleHandler);
+
+		Processor processor = Machine.processor();
+		if (processor == null || !Machine.interrupt().inUserMode()) {
+			record("[kernel]");
+			return;
+		}
+
+		int asid = processor.getASID();
+		Program program = programs.get(asid);
+		CoffProcedure[] procedures = (program != null) ? program.procedures
+				: new CoffProcedure[0];
+
+		String[] frames = new String[maxDepth];
+		int depth = unwind(processor, procedures, frames);
+
+		StringBuffer stack = new StringBuffer();
+		stack.append((program != null) ? program.name : "asid:" + asid);
+		for (int i = depth - 1; i >= 0; i--)
+			stack.append(';').append(frames[i]);
+
+		record(stack.toString());
+	}
+
+	/**
+	 * Walk the user stack, innermost frame first.
+	 *
+	 * <p>
+	 * The symbol table gives each procedure's frame size and where it saves
+	 * <tt>$ra</tt>, but not whether the procedure has got that far into its
+	 * prologue yet, so the innermost frame scans its prologue for the
+	 * <tt>addiu $sp</tt> and <tt>sw $ra</tt> instructions. Every outer frame
+	 * is stopped at a call, so its frame is complete.
+	 *
+	 * @return the number of frames found.
+	 */
+	private int unwind(Processor processor, CoffProcedure[] procedures,
+			String[] frames) {
+		int pc = processor.readRegister(Processor.regPC);
+		int sp = processor.readRegister(Processor.regSP);
+		int ra = processor.readRegister(Processor.regRA);
+
+		int depth = 0;
+		while (depth < frames.length) {
+			boolean innermost = (depth == 0);
+			CoffProcedure procedure = find(procedures, pc);
+
+			frames[depth++] = (procedure != null) ? procedure.getName() : "0x"
+					+ Lib.toHexString(pc);
+
+			if (procedure == null
+					|| procedure.getFrameRegister() != Processor.regSP) {
+				// with nothing to go on, only the innermost $ra is usable
+				if (innermost && ra != 0 && depth < frames.length) {
+					procedure = find(procedures, ra - 8);
+					frames[depth++] = (procedure != null) ? procedure
+							.getName() : "0x" + Lib.toHexString(ra - 8);
+				}
+				break;
+			}
+
+			boolean allocated = !innermost, saved = !innermost;
+			if (innermost) {
+				int end = Math.min(pc, procedure.getAddress() + 4
+						* maxPrologue);
+				for (int addr = procedure.getAddress(); addr < end; addr += 4) {
+					long word = processor.peekWord(addr);
+					if ((word & 0xFFFF8000L) == addiuSPNegative)
+						allocated = true;
+					else if ((word & 0xFFFF0000L) == swRA)
+						saved = true;
+				}
+
+				// in the epilogue, $ra has been reloaded, and the frame may
+				// already be gone
+				if (processor.peekWord(pc) == jrRA
+						|| processor.peekWord(pc - 4) == jrRA) {
+					saved = false;
+					if ((processor.peekWord(pc - 4) & 0xFFFF8000L) == addiuSP)
+						allocated = false;
+				}
+			}
+
+			int top = allocated ? sp + procedure.getFrameSize() : sp;
+
+			int returnAddress;
+			if (procedure.savesReturnAddress() && saved) {
+				long word = processor.peekWord(top
+						+ procedure.getReturnAddressOffset());
+				if (word == -1)
+					break;
+				returnAddress = (int) word;
+			}
+			else if (innermost) {
+				returnAddress = ra;
+			}
+			else {
+				break;
+			}
+
+			if (returnAddress == 0)
+				break;
+
+			// the caller is at its jal, before the delay slot
+			pc = returnAddress - 8;
+			sp = top;
+		}
+
+		return depth;
+	}
+
+	/**
+	 * Find the procedure containing an address: the last one that starts at
+	 * or before it.
+	 */
+	private static CoffProcedure find(CoffProcedure[] procedures, int addr) {
+		int low = 0, high = procedures.length - 1;
+		CoffProcedure found = null;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (procedures[mid].getAddress() <= addr) {
+				found = procedures[mid];
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+
+		return found;
+	}
+
+	private void record(String stack) {
+		Integer count = samples.get(stack);
+		samples.put(stack, (count == null) ? 1 : count + 1);
+	}
+
+	/**
+	 * Write the samples taken so far to the profile file. Called when the
+	 * machine halts.
+	 */
+	public void writeProfile() {
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(fileName));
+
+			int total = 0;
+			for (Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(
+					samples).entrySet()) {
+				out.println(entry.getKey() + " " + entry.getValue());
+				total += entry.getValue();
+			}
+
+			out.close();
+
+			System.out.println("Profile: " + total + " samples written to "
+					+ fileName);
+		}
+		catch (IOException e) {
+			System.out.println("Profile: could not write " + fileName + ": "
+					+ e.getMessage());
+		}
+	}
+
+	private static class Program {
+		Program(String name, CoffProcedure[] procedures) {
+			this.name = name;
+			this.procedures = procedures;
+		}
+
+		String name;
+
+		CoffProcedure[] procedures;
+	}
+
+	private Privilege privilege;
+
+	private int interval;
+
+	private String fileName;
+
+	private Runnable sampleHandler;
+
+	private HashMap<Integer, Program> programs = new HashMap<Integer, Program>();
+
+	private HashMap<String, Integer> samples = new HashMap<String, Integer>();
+
+	/** The deepest stack that is walked. */
+	private static final int maxDepth = 64;
+
+	/** The number of instructions searched for the prologue. */
+	private static final int maxPrologue = 16;
+
+	private static final long addiuSP = 0x27BD0000L,
+			addiuSPNegative = 0x27BD8000L, swRA = 0xAFBF0000L,
+			jrRA = 0x03E00008L;
+}
@@ -19,19 +19,38 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks + ", idle " + idleTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
-				+ ", TLB misses " + numTLBMisses);
+				+ ", TLB misses " + numTLBMisses + ", TLB hits " + numTLBHits
+				+ ", TLB flushes " + numTLBFlushes);
+		if (caches != null)
+			caches.print();
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites
 			        + ", swap skips " + numSwapSkips);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		if (numInteractiveDispatches + numBatchDispatches > 0)
+			System.out.println("Scheduling: interactive dispatches "
+					+ numInteractiveDispatches + ", mean latency "
+					+ mean(interactiveLatencyTicks, numInteractiveDispatches)
+					+ ", max latency " + maxInteractiveLatency
+					+ "; batch dispatches " + numBatchDispatches
+					+ ", mean latency "
+					+ mean(batchLatencyTicks, numBatchDispatches)
+					+ ", run ticks " + batchRunTicks);
+		if (numRealTimeJobs > 0)
+			System.out.println("Real-time: jobs " + numRealTimeJobs
+					+ ", deadline misses " + numDeadlineMisses);
+	}
+
+	private static long mean(long sum, long count) {
+		return (count == 0) ? 0 : sum / count;
 	}
 
 	/**
@@ -49,6 +68,12 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The total amount of simulated time that Nachos has skipped over while
+	 * every thread was waiting for an interrupt.
+	 */
+	public long idleTicks = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -67,6 +92,15 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of TLB lookups that found a matching entry. */
+	public long numTLBHits = 0;
+
+	/** The total number of times the whole TLB has been flushed. */
+	public int numTLBFlushes = 0;
+
+	/** The simulated caches, if enabled; their statistics are printed too. */
+	CacheHierarchy caches = null;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
     
@@ -85,6 +119,36 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/**
+	 * The number of times a scheduler has given the processor to a thread it
+	 * treats as interactive, and the total and longest time those threads
+	 * waited between becoming ready and running.
+	 */
+	public long numInteractiveDispatches = 0;
+
+	public long interactiveLatencyTicks = 0;
+
+	public long maxInteractiveLatency = 0;
+
+	/**
+	 * The number of times a scheduler has given the processor to a thread it
+	 * treats as batch work, the total time those threads waited to run, and
+	 * the total time they ran.
+	 */
+	public long numBatchDispatches = 0;
+
+	public long batchLatencyTicks = 0;
+
+	public long batchRunTicks = 0;
+
+	/**
+	 * The number of real-time jobs that have ended or run into the next
+	 * period, and the number of those that missed their deadlines.
+	 */
+	public long numRealTimeJobs = 0;
+
+	public long numDeadlineMisses = 0;
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
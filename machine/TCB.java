@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,14 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * Only one TCB runs at a time. A context switch hands the processor to the
+ * next TCB directly, by unparking its JVM thread and parking the current one.
+ * Setting <tt>TCB.virtualThreads</tt> runs TCBs on JVM virtual threads, which
+ * are cheap enough for tens of thousands of Nachos threads; on a JVM without
+ * them, TCBs get platform threads with <tt>TCB.stackSize</tt>-byte stacks.
+ * <tt>TCB.maxThreads</tt> limits the number of TCBs that can exist at once.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +50,57 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("TCB.virtualThreads", false)) {
+			virtualThreadBuilder = findVirtualThreadBuilder();
+			if (virtualThreadBuilder == null) {
+				stackSize = Config.getInteger("TCB.stackSize", 512 * 1024);
+				System.out.println("TCB: no virtual threads in this JVM, "
+						+ "using " + stackSize + "-byte thread stacks");
+			}
+		}
+
+		maxThreads = Config.getInteger("TCB.maxThreads",
+				Config.getBoolean("TCB.virtualThreads", false) ? 100000 : 250);
+		Lib.assertTrue(maxThreads > 0);
+	}
+
+	/**
+	 * Return <tt>Thread.ofVirtual()</tt>, looked up by reflection so that
+	 * Nachos still runs on JVMs that predate virtual threads.
+	 * 
+	 * @return a virtual thread builder, or <tt>null</tt> if virtual threads
+	 * are not available.
+	 */
+	private static Object findVirtualThreadBuilder() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod(
+					"unstarted", Runnable.class);
+			return builder;
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create the JVM thread that runs a TCB.
+	 */
+	private static Thread newThread(Runnable target) {
+		if (virtualThreadBuilder != null) {
+			try {
+				return (Thread) unstarted.invoke(virtualThreadBuilder, target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("cannot create a virtual thread: " + e);
+			}
+		}
+
+		if (stackSize != 0)
+			return new Thread(null, target, "TCB", stackSize);
+
+		return new Thread(target);
 	}
 
 	/**
@@ -103,7 +164,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newThread(tcbTarget);
 				}
 			});
 
@@ -119,6 +180,24 @@ public final class TCB {
 			this.javaThread.start();
 			currentTCB.waitForInterrupt();
 		}
+		else if (virtualThreadBuilder != null) {
+			/*
+			 * This is the first TCB, but every TCB runs on a virtual thread,
+			 * so that context switches never involve a platform thread. Start
+			 * one to invoke threadroot(), and leave the current Java thread
+			 * waiting for Nachos to exit, since virtual threads do not keep
+			 * the JVM alive on their own.
+			 */
+			javaThread = newThread(new Runnable() {
+				public void run() {
+					threadroot();
+				}
+			});
+			javaThread.start();
+
+			while (true)
+				LockSupport.park();
+		}
 		else {
 			/*
 			 * This is the first TCB, so we don't need to make a new Java thread
@@ -292,32 +371,33 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Parks the JVM thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+	 * TCB needs to go to wait for its turn to run. This includes the
+	 * ping-pong process of starting and destroying TCBs, as well as in context
+	 * switching from this TCB to another. We don't rely on
+	 * <tt>currentTCB</tt>, since it is updated by <tt>contextSwitch()</tt>
+	 * before we get called.
+	 * 
+	 * <p>
+	 * Parking leaves no monitor held, so a virtual thread releases its carrier
+	 * while it waits. An unpark that arrives first is remembered, and spurious
+	 * returns are caught by checking the flag again.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
+	 * and unparking the JVM thread bound to it. Used in the ping-pong process
+	 * of starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -343,9 +423,20 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence: <tt>TCB.maxThreads</tt>, or by default 250 platform threads
+	 * or 100000 virtual threads. Set from the configuration when the machine
+	 * starts; kernels may read it, but should not change it.
 	 */
-	public static final int maxThreads = 250;
+	public static int maxThreads = 250;
+
+	/** <tt>Thread.ofVirtual()</tt>, if TCBs run on virtual threads. */
+	private static Object virtualThreadBuilder = null;
+
+	/** <tt>Thread.Builder.OfVirtual.unstarted(Runnable)</tt>. */
+	private static Method unstarted;
+
+	/** The stack size of platform threads, or 0 for the JVM's default. */
+	private static long stackSize = 0;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -404,7 +495,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
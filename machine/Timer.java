@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * A hardware timer generates a CPU timer interrupt approximately every 500
  * clock ticks. This means that it can be used for implementing time-slicing, or
@@ -13,6 +15,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ * 
+ * <p>
+ * The timer can also be switched to one-shot mode with <tt>setDeadline()</tt>.
+ * It then interrupts once, at the last time it was programmed for, and not
+ * again until it is programmed again.
  */
 public final class Timer {
 	/**
@@ -60,11 +67,74 @@ public final class Timer {
 		return privilege.stats.totalTicks;
 	}
 
+	/**
+	 * Switch the timer to one-shot mode, and program it to interrupt once at
+	 * the specified time, replacing any time it was programmed for before. A
+	 * time that has already passed interrupts on the next tick.
+	 * <tt>Long.MAX_VALUE</tt> disarms the timer.
+	 * 
+	 * @param time the time at which to interrupt.
+	 */
+	public void setDeadline(long time) {
+		periodic = false;
+		arm(time);
+	}
+
+	/**
+	 * Return the time the timer is programmed to interrupt at.
+	 * 
+	 * @return the deadline, or <tt>Long.MAX_VALUE</tt> if the timer is
+	 * disarmed.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Set the deadline, scheduling an interrupt for it unless one is already
+	 * pending by then.
+	 */
+	private void arm(long time) {
+		deadline = Math.max(time, getTime() + 1);
+
+		// an earlier interrupt wakes up to find the deadline has moved, and
+		// arms the timer again
+		if (time != Long.MAX_VALUE
+				&& (numPending == 0 || pending[numPending - 1] > deadline))
+			schedule(deadline);
+	}
+
+	/**
+	 * Schedule an interrupt earlier than every other one pending, so that
+	 * the pending interrupts, in the order they were scheduled, form a stack
+	 * whose top is the next to occur.
+	 */
+	private void schedule(long time) {
+		if (numPending == pending.length)
+			pending = Arrays.copyOf(pending, numPending * 2);
+		pending[numPending++] = time;
+
+		privilege.interrupt.schedule(time - getTime(), "timer", timerInterrupt);
+	}
+
 	private void timerInterrupt() {
-		scheduleInterrupt();
+		numPending--;
+
+		long time = getTime();
+		if (time < deadline) {
+			if (deadline != Long.MAX_VALUE
+					&& (numPending == 0 || pending[numPending - 1] > deadline))
+				schedule(deadline);
+			return;
+		}
+
+		deadline = Long.MAX_VALUE;
+
+		if (periodic)
+			scheduleInterrupt();
 		scheduleAutoGraderInterrupt();
 
-		lastTimerInterrupt = getTime();
+		lastTimerInterrupt = time;
 
 		if (handler != null)
 			handler.run();
@@ -74,7 +144,7 @@ public final class Timer {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
 
-		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+		arm(getTime() + delay);
 	}
 
 	private void scheduleAutoGraderInterrupt() {
@@ -90,4 +160,15 @@ public final class Timer {
 	private Privilege privilege;
 
 	private Runnable handler = null;
+
+	/** <tt>false</tt> once the timer has been switched to one-shot mode. */
+	private boolean periodic = true;
+
+	/** The time the timer is programmed to interrupt at. */
+	private long deadline = Long.MAX_VALUE;
+
+	/** The times of the pending timer interrupts, latest first. */
+	private long[] pending = new long[4];
+
+	private int numPending = 0;
 }
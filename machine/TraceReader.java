@@ -0,0 +1,397 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads a binary instruction trace, recorded by setting the
+ * <tt>Processor.trace</tt> key, and prints the instruction mix, the faults,
+ * and the average working set size for a range of windows. The format is
+ * described in <tt>TraceRecorder</tt>. This runs on its own, outside Nachos:
+ *
+ * <pre>
+ * java nachos.machine.TraceReader [-pages &lt;file&gt;] [-ws &lt;window&gt;]... &lt;trace&gt;
+ * </pre>
+ *
+ * <p>
+ * <tt>-pages</tt> writes the page reference string, one <tt>asid vpn</tt>
+ * line per reference with repeated references to the same page collapsed.
+ * Each completed instruction references the page it was fetched from and the
+ * page of its first data access. <tt>-ws</tt> sets a working set window, in
+ * instructions; it can be given more than once.
+ */
+public final class TraceReader {
+	/**
+	 * Open a trace file and read its header.
+	 *
+	 * @param fileName the name of the trace file.
+	 * @exception IOException if the file cannot be read or is not a trace.
+	 */
+	public TraceReader(String fileName) throws IOException {
+		channel = new RandomAccessFile(fileName, "r").getChannel();
+		length = channel.size();
+		map(0);
+
+		if (length < 12 || buffer.getInt() != TraceRecorder.magic
+				|| buffer.getInt() != TraceRecorder.version)
+			throw new IOException(fileName + " is not a Nachos trace");
+
+		pageSize = buffer.getInt();
+	}
+
+	private void map(long position) throws IOException {
+		this.position = position;
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math
+				.min(chunkSize, length - position));
+	}
+
+	/**
+	 * Read the next instruction record.
+	 *
+	 * @return <tt>false</tt> at the end of the trace.
+	 * @exception IOException if the file cannot be read.
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			// records are short, so only remap when one might straddle
+			if (buffer.remaining() < maxRecordLength
+					&& position + buffer.position() < length)
+				map(position + buffer.position());
+
+			if (!buffer.hasRemaining())
+				return false;
+
+			int flags = buffer.get() & 0xFF;
+
+			if (flags == TraceRecorder.recordASID) {
+				asid = getUnsigned();
+			}
+			else if (flags == TraceRecorder.recordName) {
+				int id = getUnsigned();
+				byte[] bytes = new byte[getUnsigned()];
+				buffer.get(bytes);
+
+				while (names.size() <= id)
+					names.add(null);
+				names.set(id, new String(bytes));
+			}
+			else {
+				this.flags = flags;
+				mnemonic = getUnsigned();
+
+				int expected = pc + 4;
+				pc = ((flags & TraceRecorder.flagJump) != 0) ? expected
+						+ getSigned() : expected;
+
+				if ((flags & TraceRecorder.flagMem) != 0)
+					dataVAddr += getSigned();
+
+				cause = -1;
+				ppn = -1;
+				if ((flags & TraceRecorder.flagFault) != 0)
+					cause = buffer.get() & 0xFF;
+				else if ((flags & TraceRecorder.flagMem) != 0)
+					ppn = getUnsigned();
+
+				return true;
+			}
+		}
+	}
+
+	private int getUnsigned() {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+
+	private int getSigned() {
+		int value = getUnsigned();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Return the name of a mnemonic number.
+	 *
+	 * @param id the mnemonic number.
+	 * @return the mnemonic.
+	 */
+	public String getName(int id) {
+		if (id == 0)
+			return "(fetch)";
+		if (id < names.size() && names.get(id) != null)
+			return names.get(id);
+		return "#" + id;
+	}
+
+	/** Test whether the current record accessed data memory. */
+	public boolean accessesData() {
+		return (flags & TraceRecorder.flagMem) != 0;
+	}
+
+	/** Test whether the current record wrote data memory. */
+	public boolean stores() {
+		return (flags & TraceRecorder.flagStore) != 0;
+	}
+
+	/** Test whether the current record caused an exception. */
+	public boolean faulted() {
+		return (flags & TraceRecorder.flagFault) != 0;
+	}
+
+	/** The page size of the machine the trace was recorded on. */
+	public int pageSize;
+
+	/** The address space identifier of the current record. */
+	public int asid = 0;
+
+	/** The PC of the current record. */
+	public int pc = -4;
+
+	/** The mnemonic number of the current record, or 0 if not fetched. */
+	public int mnemonic;
+
+	/** The first data address of the current record, if it has one. */
+	public int dataVAddr = 0;
+
+	/** The physical page of the data access, or -1. */
+	public int ppn;
+
+	/** The exception cause of the current record, or -1. */
+	public int cause;
+
+	public static void main(String[] args) throws IOException {
+		String traceName = null, pagesName = null;
+		long[] windows = new long[0];
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-pages") && i + 1 < args.length) {
+				pagesName = args[++i];
+			}
+			else if (args[i].equals("-ws") && i + 1 < args.length) {
+				windows = Arrays.copyOf(windows, windows.length + 1);
+				windows[windows.length - 1] = Long.parseLong(args[++i]);
+			}
+			else if (traceName == null && !args[i].startsWith("-")) {
+				traceName = args[i];
+			}
+			else {
+				traceName = null;
+				break;
+			}
+		}
+
+		if (traceName == null) {
+			System.err.println("usage: java nachos.machine.TraceReader "
+					+ "[-pages <file>] [-ws <window>]... <trace>");
+			System.exit(1);
+		}
+
+		if (windows.length == 0)
+			windows = new long[] { 1000, 10000, 100000 };
+
+		TraceReader reader = new TraceReader(traceName);
+		PrintWriter pages = (pagesName != null) ? new PrintWriter(
+				new FileWriter(pagesName)) : null;
+
+		long instructions = 0, loads = 0, stores = 0;
+		long[] mix = new long[16];
+		long[] faults = new long[Processor.exceptionNames.length];
+
+		WorkingSets sets = new WorkingSets(windows);
+		long lastPage = -1;
+
+		while (reader.next()) {
+			if (reader.faulted()) {
+				if (reader.cause < faults.length)
+					faults[reader.cause]++;
+				continue;
+			}
+
+			instructions++;
+
+			if (reader.mnemonic >= mix.length)
+				mix = Arrays.copyOf(mix, reader.mnemonic * 2);
+			mix[reader.mnemonic]++;
+
+			long asid = (long) reader.asid << 32;
+			long fetchPage = asid
+					| Processor.pageFromAddress(reader.pc) & 0xFFFFFFFFL;
+			sets.reference(fetchPage, instructions);
+
+			if (pages != null && fetchPage != lastPage)
+				pages.println(reader.asid + " " + (lastPage = fetchPage)
+						% (1L << 32));
+
+			if (reader.accessesData()) {
+				if (reader.stores())
+					stores++;
+				else
+					loads++;
+
+				long dataPage = asid
+						| Processor.pageFromAddress(reader.dataVAddr)
+						& 0xFFFFFFFFL;
+				sets.reference(dataPage, instructions);
+
+				if (pages != null && dataPage != lastPage)
+					pages.println(reader.asid + " " + (lastPage = dataPage)
+							% (1L << 32));
+			}
+		}
+
+		if (pages != null)
+			pages.close();
+
+		System.out.println("Instructions: " + instructions + ", loads "
+				+ loads + ", stores " + stores);
+
+		System.out.println("Instruction mix:");
+		Integer[] order = new Integer[mix.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		final long[] counts = mix;
+		Arrays.sort(order, new java.util.Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(counts[b], counts[a]);
+			}
+		});
+		for (int i = 0; i < order.length && mix[order[i]] > 0; i++)
+			System.out.println("\t" + reader.getName(order[i]) + "\t"
+					+ mix[order[i]] + "\t"
+					+ percent(mix[order[i]], instructions));
+
+		System.out.print("Exceptions:");
+		for (int i = 0; i < faults.length; i++)
+			System.out.print(" " + Processor.exceptionNames[i].trim() + " "
+					+ faults[i] + (i + 1 < faults.length ? "," : "\n"));
+
+		System.out.println("Pages: " + sets.distinct() + " distinct");
+		double[] averages = sets.averages(instructions);
+		for (int i = 0; i < windows.length; i++)
+			System.out.println("Working set, window " + windows[i] + ": "
+					+ String.format("%.2f", averages[i]) + " pages");
+	}
+
+	private static String percent(long count, long total) {
+		return String.format("%.2f%%", (total == 0) ? 0.0 : 100.0 * count
+				/ total);
+	}
+
+	/**
+	 * Computes the average working set size for several windows at once. A
+	 * page belongs to the working set for <i>window</i> instructions after
+	 * each reference to it, so each reference adds the shorter of the window
+	 * and the time until the next reference to the integral of the working
+	 * set size over time.
+	 */
+	private static class WorkingSets {
+		WorkingSets(long[] windows) {
+			this.windows = windows;
+			integrals = new long[windows.length];
+		}
+
+		void reference(long page, long time) {
+			int slot = find(page);
+
+			if (keys[slot] == page) {
+				account(time - lastReference[slot]);
+			}
+			else {
+				keys[slot] = page;
+				if (++size * 2 > keys.length) {
+					grow();
+					slot = find(page);
+				}
+			}
+
+			lastReference[slot] = time;
+		}
+
+		private void account(long interval) {
+			for (int i = 0; i < windows.length; i++)
+				integrals[i] += Math.min(interval, windows[i]);
+		}
+
+		int distinct() {
+			return size;
+		}
+
+		double[] averages(long end) {
+			for (int slot = 0; slot < keys.length; slot++)
+				if (keys[slot] != empty)
+					account(end - lastReference[slot]);
+
+			double[] averages = new double[windows.length];
+			for (int i = 0; i < windows.length; i++)
+				averages[i] = (end == 0) ? 0 : (double) integrals[i] / end;
+			return averages;
+		}
+
+		/** Open addressing, so a reference does not allocate. */
+		private int find(long page) {
+			int slot = (int) ((page * 0x9E3779B97F4A7C15L) >>> 40)
+					& (keys.length - 1);
+			while (keys[slot] != empty && keys[slot] != page)
+				slot = (slot + 1) & (keys.length - 1);
+			return slot;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys, oldReferences = lastReference;
+
+			keys = new long[oldKeys.length * 2];
+			Arrays.fill(keys, empty);
+			lastReference = new long[keys.length];
+
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != empty) {
+					int slot = find(oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					lastReference[slot] = oldReferences[i];
+				}
+			}
+		}
+
+		private long[] windows, integrals;
+
+		private long[] keys = newKeys(1024);
+
+		private long[] lastReference = new long[1024];
+
+		private int size = 0;
+
+		private static long[] newKeys(int n) {
+			long[] keys = new long[n];
+			Arrays.fill(keys, empty);
+			return keys;
+		}
+
+		private static final long empty = -1;
+	}
+
+	private FileChannel channel;
+
+	private long length, position;
+
+	private MappedByteBuffer buffer;
+
+	private int flags;
+
+	private ArrayList<String> names = new ArrayList<String>();
+
+	private static final int maxRecordLength = 64;
+
+	private static final int chunkSize = 1 << 24;
+}
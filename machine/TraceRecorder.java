@@ -0,0 +1,275 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Records a compact binary trace of the user instructions the processor
+ * executes, one record per instruction, written through a memory-mapped
+ * file. <tt>TraceReader</tt> reads it back.
+ *
+ * <p>
+ * The file starts with a header: the magic number, the format version and
+ * the page size, each a 4-byte big-endian integer. The records follow. A
+ * record starts with a flags byte. If its top bit is clear, it describes one
+ * instruction, and holds:
+ *
+ * <ul>
+ * <li>the flags: <tt>MEM</tt> if the instruction accessed data memory,
+ * <tt>STORE</tt> if it wrote it, <tt>FAULT</tt> if it caused an exception,
+ * and <tt>JUMP</tt> if its PC does not follow the previous record's;
+ * <li>the mnemonic number, as an unsigned varint, or 0 if the instruction
+ * could not be fetched;
+ * <li>if <tt>JUMP</tt>, its PC minus the previous PC plus 4, as a signed
+ * varint;
+ * <li>if <tt>MEM</tt>, the virtual address of its first data access minus
+ * that of the previous record with <tt>MEM</tt>, as a signed varint;
+ * <li>if <tt>FAULT</tt>, the exception cause as one byte; otherwise, if
+ * <tt>MEM</tt>, the physical page of the data access as an unsigned varint.
+ * </ul>
+ *
+ * <p>
+ * A record with the top bit set is either <tt>ASID</tt>, followed by the
+ * address space identifier that later instructions run with, or
+ * <tt>NAME</tt>, followed by a mnemonic number, a length and that many bytes
+ * of the mnemonic's name. Each mnemonic is named before it is first used.
+ *
+ * <p>
+ * Signed varints are zigzag encoded, and all varints hold 7 bits per byte,
+ * least significant first, with the top bit set on all but the last byte.
+ */
+final class TraceRecorder {
+	/**
+	 * Create a trace file, replacing any existing file.
+	 *
+	 * @param fileName the name of the trace file.
+	 */
+	TraceRecorder(String fileName) {
+		this.fileName = fileName;
+
+		try {
+			RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+			file.setLength(0);
+			channel = file.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					chunkSize);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("cannot create trace file " + fileName + ": "
+					+ e.getMessage());
+		}
+
+		buffer.putInt(magic);
+		buffer.putInt(version);
+		buffer.putInt(Processor.pageSize);
+	}
+
+	/**
+	 * Return the mnemonic number of an instruction name, naming it in the
+	 * trace if it is new.
+	 *
+	 * @param name the instruction name, as printed by the disassembler.
+	 * @return the mnemonic number, at least 1.
+	 */
+	int mnemonic(String name) {
+		String mnemonic = name.substring(0, name.indexOf(' '));
+
+		Integer id = mnemonics.get(mnemonic);
+		if (id == null) {
+			id = mnemonics.size() + 1;
+			mnemonics.put(mnemonic, id);
+
+			byte[] bytes = mnemonic.getBytes();
+			ensure(1 + 5 + 5 + bytes.length);
+			buffer.put((byte) recordName);
+			putUnsigned(id);
+			putUnsigned(bytes.length);
+			buffer.put(bytes);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Start recording an instruction.
+	 *
+	 * @param pc the virtual address of the instruction.
+	 * @param asid the address space identifier it runs with.
+	 */
+	void begin(int pc, int asid) {
+		if (asid != lastASID) {
+			ensure(1 + 5);
+			buffer.put((byte) recordASID);
+			putUnsigned(asid);
+			lastASID = asid;
+		}
+
+		this.pc = pc;
+		mnemonic = 0;
+		flags = 0;
+		ppn = -1;
+	}
+
+	/**
+	 * Record the mnemonic of the instruction being recorded.
+	 *
+	 * @param mnemonic the mnemonic number.
+	 */
+	void decoded(int mnemonic) {
+		this.mnemonic = mnemonic;
+	}
+
+	/**
+	 * Record a data access by the instruction being recorded. Only the
+	 * address of the first access is kept.
+	 *
+	 * @param vaddr the virtual address accessed.
+	 * @param store <tt>true</tt> if the access is a write.
+	 */
+	void data(int vaddr, boolean store) {
+		if ((flags & flagMem) == 0) {
+			flags |= flagMem;
+			dataVAddr = vaddr;
+		}
+
+		if (store)
+			flags |= flagStore;
+	}
+
+	/**
+	 * Record the physical address the first data access translated to.
+	 *
+	 * @param paddr the physical address.
+	 */
+	void translated(int paddr) {
+		if (ppn == -1)
+			ppn = paddr / Processor.pageSize;
+	}
+
+	/**
+	 * Write the record of an instruction that completed.
+	 */
+	void end() {
+		write(-1);
+	}
+
+	/**
+	 * Write the record of an instruction that caused an exception.
+	 *
+	 * @param cause the exception cause.
+	 */
+	void fault(int cause) {
+		flags |= flagFault;
+		write(cause);
+	}
+
+	private void write(int cause) {
+		ensure(maxRecordLength);
+
+		int expected = lastPC + 4;
+		if (pc != expected)
+			flags |= flagJump;
+
+		buffer.put((byte) flags);
+		putUnsigned(mnemonic);
+
+		if ((flags & flagJump) != 0)
+			putSigned(pc - expected);
+
+		if ((flags & flagMem) != 0) {
+			putSigned(dataVAddr - lastDataVAddr);
+			lastDataVAddr = dataVAddr;
+		}
+
+		if ((flags & flagFault) != 0)
+			buffer.put((byte) cause);
+		else if ((flags & flagMem) != 0)
+			putUnsigned(ppn);
+
+		lastPC = pc;
+	}
+
+	private void putUnsigned(int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private void putSigned(int value) {
+		putUnsigned((value << 1) ^ (value >> 31));
+	}
+
+	/** Map the next chunk of the file if fewer than <i>n</i> bytes remain. */
+	private void ensure(int n) {
+		if (buffer.remaining() >= n)
+			return;
+
+		try {
+			position += buffer.position();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, position,
+					chunkSize);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("cannot extend trace file " + fileName
+					+ ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write out the rest of the trace and truncate the file to its length.
+	 */
+	void close() {
+		long length = position + buffer.position();
+
+		try {
+			buffer.force();
+			channel.truncate(length);
+			channel.close();
+		}
+		catch (IOException e) {
+			System.out.println("Trace: could not finish " + fileName + ": "
+					+ e.getMessage());
+			return;
+		}
+
+		System.out.println("Trace: " + length + " bytes written to "
+				+ fileName);
+	}
+
+	private String fileName;
+
+	private FileChannel channel;
+
+	private MappedByteBuffer buffer;
+
+	/** The file offset of the start of the mapped chunk. */
+	private long position = 0;
+
+	private HashMap<String, Integer> mnemonics = new HashMap<String, Integer>();
+
+	/** The instruction being recorded. */
+	private int pc, mnemonic, flags, dataVAddr, ppn;
+
+	private int lastPC = -4, lastDataVAddr = 0, lastASID = -1;
+
+	static final int magic = 0x4E545243; // "NTRC"
+
+	static final int version = 1;
+
+	static final int flagMem = 0x01, flagStore = 0x02, flagFault = 0x04,
+			flagJump = 0x08;
+
+	static final int recordASID = 0x80, recordName = 0x81;
+
+	/** Flags, three varints, and a cause byte. */
+	private static final int maxRecordLength = 1 + 5 + 5 + 5 + 1;
+
+	private static final int chunkSize = 1 << 24;
+}
@@ -157,6 +157,27 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once, and then
+		 * invoke any interrupt handlers that have become due. Only use this
+		 * when no interrupt can become due before the last of these ticks,
+		 * otherwise its handler will run late.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the ticks were spent running
+		 * kernel code, <tt>false</tt> if they were spent running MIPS user
+		 * code.
+		 * @param numTicks the number of ticks to advance by.
+		 */
+		public void tick(boolean inKernelMode, long numTicks);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due.
+		 * 
+		 * @return the time of the next pending interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 */
+		public long nextDueTime();
 	}
 
 	/**
@@ -0,0 +1,187 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * The processor time and events charged to a thread, a process, or a group of
+ * processes. Everything charged to an account is also charged to its parent,
+ * if it has one, so a process's account adds up its threads, and a group's
+ * adds up its processes.
+ *
+ * <p>
+ * An account can also have a quota, of a number of ticks in each period. The
+ * ticks charged to it and to every account under it count against the quota,
+ * which starts again at the start of each period. A <tt>QuotaScheduler</tt>
+ * does not run the threads under an account whose quota is used up until its
+ * next period.
+ *
+ * @see nachos.threads.KThread#getAccount
+ */
+public class Account {
+	/**
+	 * Allocate a new account, with no parent and no quota.
+	 */
+	public Account() {
+	}
+
+	/**
+	 * Allocate a new account that is charged to the specified parent too.
+	 *
+	 * @param parent the account to charge as well, or <tt>null</tt>.
+	 */
+	public Account(Account parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Return the account that is charged along with this one.
+	 *
+	 * @return the parent account, or <tt>null</tt>.
+	 */
+	public Account getParent() {
+		return parent;
+	}
+
+	/**
+	 * Set the account that is charged along with this one. Only what is
+	 * charged from now on is charged to it.
+	 *
+	 * @param parent the new parent account, or <tt>null</tt>.
+	 */
+	public void setParent(Account parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Limit this account, and every account under it, to <i>quota</i> ticks in
+	 * each <i>period</i>, starting now. A quota of 0 removes the limit.
+	 *
+	 * @param quota the number of ticks allowed in each period, or 0.
+	 * @param period the length of a period.
+	 */
+	public void setQuota(long quota, long period) {
+		Lib.assertTrue(quota >= 0 && (quota == 0 || quota <= period));
+
+		this.quota = quota;
+		this.period = period;
+		periodStart = Machine.timer().getTime();
+		used = 0;
+	}
+
+	/**
+	 * Charge processor time and page faults to this account and its
+	 * ancestors.
+	 */
+	void charge(long userTicks, long kernelTicks, int pageFaults) {
+		long time = Machine.timer().getTime();
+
+		for (Account account = this; account != null; account = account.parent) {
+			account.userTicks += userTicks;
+			account.kernelTicks += kernelTicks;
+			account.numPageFaults += pageFaults;
+
+			if (account.quota > 0) {
+				account.startPeriod(time);
+				account.used += userTicks + kernelTicks;
+			}
+		}
+	}
+
+	/**
+	 * Count a context switch away from a thread charged to this account.
+	 */
+	void countSwitch() {
+		for (Account account = this; account != null; account = account.parent)
+			account.numSwitches++;
+	}
+
+	/**
+	 * Count a syscall made by a thread charged to this account.
+	 */
+	public void countSyscall() {
+		for (Account account = this; account != null; account = account.parent)
+			account.numSyscalls++;
+	}
+
+	/**
+	 * Return the first account, going up from this one, whose quota is used up
+	 * for the current period.
+	 *
+	 * @param time the current time.
+	 * @return the account with no time left, or <tt>null</tt> if there is
+	 * none.
+	 */
+	Account exhausted(long time) {
+		for (Account account = this; account != null; account = account.parent) {
+			if (account.quota > 0) {
+				account.startPeriod(time);
+				if (account.used >= account.quota)
+					return account;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Return the time left in the current period under every quota over this
+	 * account.
+	 *
+	 * @param time the current time.
+	 * @return the smallest time left, or <tt>Long.MAX_VALUE</tt> if there is
+	 * no quota.
+	 */
+	long remaining(long time) {
+		long remaining = Long.MAX_VALUE;
+
+		for (Account account = this; account != null; account = account.parent) {
+			if (account.quota > 0) {
+				account.startPeriod(time);
+				remaining = Math.min(remaining, account.quota - account.used);
+			}
+		}
+
+		return Math.max(remaining, 0);
+	}
+
+	/**
+	 * Return the time the next period of this account's quota starts.
+	 *
+	 * @return the start of the next period.
+	 */
+	long nextPeriod() {
+		return periodStart + period;
+	}
+
+	private void startPeriod(long time) {
+		if (time < periodStart + period)
+			return;
+
+		periodStart += (time - periodStart) / period * period;
+		used = 0;
+	}
+
+	public String toString() {
+		return "user " + userTicks + ", kernel " + kernelTicks + ", switches "
+				+ numSwitches + ", page faults " + numPageFaults
+				+ ", syscalls " + numSyscalls;
+	}
+
+	/** The ticks spent in user mode and in kernel mode. */
+	public long userTicks = 0, kernelTicks = 0;
+
+	/** The number of times the processor was switched away. */
+	public long numSwitches = 0;
+
+	public long numPageFaults = 0;
+
+	public long numSyscalls = 0;
+
+	private Account parent = null;
+
+	/** The quota, the length of its period, and when the period started. */
+	private long quota = 0, period, periodStart;
+
+	/** The ticks charged in the current period. */
+	private long used = 0;
+}
@@ -2,19 +2,53 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Level <i>n</i> of
+ * the wheel has 64 slots, each covering 64<sup><i>n</i></sup> ticks, and a
+ * thread is filed at the level of the highest 6-bit digit in which its wake
+ * time differs from the wheel's current time. As the wheel advances, a slot is
+ * emptied when its time comes, and its threads are woken or refiled at a
+ * lower level. A bitmap of occupied slots per level lets the wheel skip
+ * straight to the next occupied slot, so sleeping, waking and cancelling all
+ * take constant time, however many threads are asleep.
+ *
+ * <p>
+ * Unless <tt>Alarm.adaptiveQuantum</tt> is <tt>false</tt>, the alarm runs the
+ * timer in one-shot mode. Each time a thread is dispatched, the timer is
+ * programmed for the end of its time slice or the next wakeup, whichever
+ * comes first. A thread that uses up its whole slice gets a slice twice as
+ * long the next time, and a thread that gives up the processor early gets
+ * one half as long, between <tt>Alarm.minQuantum</tt> and
+ * <tt>Alarm.maxQuantum</tt> ticks. A thread with nothing else ready to run
+ * gets the longest slice, and with other threads ready, a slice is cut so
+ * that all of them get a turn within <tt>Alarm.maxQuantum</tt> ticks. A
+ * thread that becomes ready while a long slice is running, for example when
+ * a device interrupt wakes it, cuts the slice short so that it runs within
+ * <tt>Alarm.minQuantum</tt> ticks. A scheduler can instead choose the length
+ * of each slice itself, and is told when a thread uses up its slice.
  */
 public class Alarm {
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
-	 * 
+	 *
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
+		wheelTime = Machine.timer().getTime();
+
+		adaptive = adaptiveQuantum();
+		minQuantum = Config.getInteger("Alarm.minQuantum", 100);
+		maxQuantum = Config.getInteger("Alarm.maxQuantum", 4000);
+		Lib.assertTrue(minQuantum > 0 && minQuantum <= maxQuantum);
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -22,45 +56,402 @@ public class Alarm {
 		});
 	}
 
+	/**
+	 * Return <tt>true</tt> unless <tt>Alarm.adaptiveQuantum</tt> is
+	 * <tt>false</tt>, in which case the alarm leaves the timer periodic.
+	 * 
+	 * @return <tt>true</tt> if the timer runs in one-shot mode.
+	 */
+	public static boolean adaptiveQuantum() {
+		return Config.getBoolean("Alarm.adaptiveQuantum", true);
+	}
+
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * approximately every 500 clock ticks, or, in one-shot mode, at the time
+	 * the alarm last programmed it for. Wakes the threads whose wake times
+	 * have passed, then causes the current thread to yield, forcing a context
+	 * switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
+		long time = Machine.timer().getTime();
+
+		// the current thread yields below, so threads woken now need not
+		// cut its slice short
+		preempting = true;
+
+		advance(time);
+
+		if (adaptive && sliceThread == KThread.currentThread()
+				&& time >= sliceEnd) {
+			ThreadedKernel.scheduler.quantumExpired(sliceThread);
+
+			// it used its whole slice, so it is probably compute bound
+			sliceThread.quantum = Math.min(quantum(sliceThread) * 2,
+					maxQuantum);
+			sliceThread = null;
+		}
+
 		KThread.currentThread().yield();
 	}
 
+	/**
+	 * Start the time slice of the thread being dispatched, and program the
+	 * timer for its end, for the next wakeup, or for the next time the
+	 * scheduler asks for, whichever comes first. Called with interrupts
+	 * disabled whenever a thread is given the processor.
+	 */
+	void startSlice() {
+		if (!adaptive)
+			return;
+
+		KThread thread = KThread.currentThread();
+
+		// the last thread gave up the processor before its slice was over,
+		// and was not preempted for another thread, so it is probably
+		// waiting for something
+		if (sliceThread != null && sliceThread != thread && !preempting)
+			sliceThread.quantum = Math.max(quantum(sliceThread) / 2,
+					minQuantum);
+		preempting = false;
+
+		// the scheduler may set the slice itself
+		long slice = ThreadedKernel.scheduler.getQuantum(thread);
+		if (slice == 0) {
+			int numReady = KThread.numReadyThreads();
+			if (numReady == 0)
+				slice = maxQuantum;
+			else
+				slice = Math.max(Math.min(quantum(thread), maxQuantum
+						/ numReady), minQuantum);
+		}
+
+		sliceThread = thread;
+		sliceEnd = Machine.timer().getTime() + slice;
+
+		Machine.timer().setDeadline(Math.min(Math.min(sliceEnd, nextWakeTime()),
+				ThreadedKernel.scheduler.nextEventTime()));
+	}
+
+	/**
+	 * Cut the running thread's time slice short when another thread becomes
+	 * ready, so that the ready thread gets the processor within
+	 * <tt>Alarm.minQuantum</tt> ticks, however long the slice is. The running
+	 * thread does not count this as using up its slice. Called with
+	 * interrupts disabled whenever a thread is made ready.
+	 *
+	 * @param thread the thread made ready.
+	 */
+	void threadReady(KThread thread) {
+		if (!adaptive || preempting || thread == sliceThread
+				|| sliceThread != KThread.currentThread())
+			return;
+
+		long preemptTime = Machine.timer().getTime() + minQuantum;
+		if (preemptTime < Machine.timer().getDeadline())
+			Machine.timer().setDeadline(preemptTime);
+	}
+
+	private long quantum(KThread thread) {
+		return (thread.quantum != 0) ? thread.quantum : Stats.TimerTicks;
+	}
+
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
 	 * in the timer interrupt handler. The thread must be woken up (placed in
 	 * the scheduler ready set) during the first timer interrupt where
-	 * 
+	 *
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
-	 * 
+	 *
 	 * @param x the minimum number of clock ticks to wait.
-	 * 
+	 *
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		long wakeTime = Machine.timer().getTime() + x;
-		while (wakeTime > Machine.timer().getTime())
-			KThread.yield();
+		if (x <= 0)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(!sleepers.containsKey(thread));
+
+		Sleeper sleeper = new Sleeper(thread, Machine.timer().getTime() + x);
+		sleepers.put(thread, sleeper);
+		file(sleeper);
+
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
 	}
 
-        /**
-	 * Cancel any timer set by <i>thread</i>, effectively waking
-	 * up the thread immediately (placing it in the scheduler
-	 * ready set) and returning true.  If <i>thread</i> has no
-	 * timer set, return false.
-	 * 
+	/**
+	 * Cancel any timer set by <i>thread</i>, effectively waking up the thread
+	 * immediately (placing it in the scheduler ready set) and returning true.
+	 * If <i>thread</i> has no timer set, return false.
+	 *
 	 * <p>
 	 * @param thread the thread whose timer should be cancelled.
 	 */
-        public boolean cancel(KThread thread) {
-		return false;
+	public boolean cancel(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Sleeper sleeper = sleepers.remove(thread);
+		if (sleeper != null) {
+			unfile(sleeper);
+			thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return (sleeper != null);
+	}
+
+	/**
+	 * Return the earliest time at which a sleeping thread is due to wake.
+	 *
+	 * @return the earliest wake time, or <tt>Long.MAX_VALUE</tt> if no
+	 * thread is sleeping.
+	 */
+	public long nextWakeTime() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		long earliest = Long.MAX_VALUE;
+
+		// the lowest occupied level holds the earliest slot, but a slot above
+		// level 0 holds a range of times, so look inside it
+		for (int level = 0; level < numLevels; level++) {
+			if (occupied[level] != 0) {
+				int slot = Long.numberOfTrailingZeros(occupied[level]);
+				Sleeper sleeper = slots[level * numSlots + slot];
+				for (; sleeper != null; sleeper = sleeper.next)
+					earliest = Math.min(earliest, sleeper.wakeTime);
+				break;
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return earliest;
+	}
+
+	/**
+	 * Advance the wheel to the specified time, waking every thread due by
+	 * then.
+	 */
+	private void advance(long time) {
+		while (numSleepers > 0) {
+			int level = 0;
+			while (occupied[level] == 0)
+				level++;
+
+			int slot = Long.numberOfTrailingZeros(occupied[level]);
+			int shift = level * slotBits;
+
+			// the time the slot's range begins; everything below it is empty
+			long above = (shift + slotBits < 64) ? wheelTime >>> shift
+					+ slotBits << shift + slotBits : 0;
+			long start = above | ((long) slot << shift);
+			if (start > time)
+				break;
+
+			wheelTime = start;
+
+			int index = level * numSlots + slot;
+			Sleeper sleeper = slots[index];
+			slots[index] = null;
+			occupied[level] &= ~(1L << slot);
+
+			while (sleeper != null) {
+				Sleeper next = sleeper.next;
+				numSleepers--;
+
+				if (sleeper.wakeTime <= wheelTime) {
+					sleepers.remove(sleeper.thread);
+					sleeper.thread.ready();
+				}
+				else {
+					file(sleeper);
+				}
+
+				sleeper = next;
+			}
+		}
+
+		if (time > wheelTime)
+			wheelTime = time;
+	}
+
+	/**
+	 * File a sleeping thread in the slot for its wake time, which must be
+	 * after the wheel's current time.
+	 */
+	private void file(Sleeper sleeper) {
+		Lib.assertTrue(sleeper.wakeTime > wheelTime);
+
+		int highestBit = 63 - Long.numberOfLeadingZeros(sleeper.wakeTime
+				^ wheelTime);
+		int level = highestBit / slotBits;
+		int slot = (int) (sleeper.wakeTime >>> level * slotBits) & slotMask;
+		int index = level * numSlots + slot;
+
+		sleeper.index = index;
+		sleeper.prev = null;
+		sleeper.next = slots[index];
+		if (sleeper.next != null)
+			sleeper.next.prev = sleeper;
+		slots[index] = sleeper;
+
+		occupied[level] |= 1L << slot;
+		numSleepers++;
+	}
+
+	private void unfile(Sleeper sleeper) {
+		int index = sleeper.index;
+
+		if (sleeper.prev != null)
+			sleeper.prev.next = sleeper.next;
+		else
+			slots[index] = sleeper.next;
+
+		if (sleeper.next != null)
+			sleeper.next.prev = sleeper.prev;
+
+		if (slots[index] == null)
+			occupied[index / numSlots] &= ~(1L << (index % numSlots));
+
+		numSleepers--;
 	}
+
+	private static class Sleeper {
+		Sleeper(KThread thread, long wakeTime) {
+			this.thread = thread;
+			this.wakeTime = wakeTime;
+		}
+
+		KThread thread;
+
+		long wakeTime;
+
+		/** The index of the slot this sleeper is filed in. */
+		int index;
+
+		Sleeper prev, next;
+	}
+
+	private static class SleepTest implements Runnable {
+		SleepTest(Alarm alarm, long duration) {
+			this.alarm = alarm;
+			this.duration = duration;
+		}
+
+		public void run() {
+			alarm.waitUntil(duration);
+			woken = Machine.timer().getTime();
+		}
+
+		private Alarm alarm;
+
+		private long duration;
+
+		long woken = -1;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		Alarm alarm = ThreadedKernel.alarm;
+
+		long[] durations = { 1, 700, 5000, 10000 };
+		for (int i = 0; i < durations.length; i++) {
+			long start = Machine.timer().getTime();
+			alarm.waitUntil(durations[i]);
+			Lib.assertTrue(Machine.timer().getTime() >= start + durations[i],
+					"woke too early");
+		}
+
+		// a cancelled sleeper wakes at once, and only once
+		long start = Machine.timer().getTime();
+		SleepTest sleeper = new SleepTest(alarm, 1000000);
+		KThread thread = new KThread(sleeper).setName("alarm test");
+		thread.fork();
+		alarm.waitUntil(1000);
+
+		Lib.assertTrue(alarm.cancel(thread), "no timer to cancel");
+		Lib.assertTrue(!alarm.cancel(thread), "timer cancelled twice");
+
+		alarm.waitUntil(1000);
+		Lib.assertTrue(sleeper.woken != -1
+				&& sleeper.woken < start + 1000000, "cancel did not wake");
+	}
+
+	/**
+	 * Measure the cost of sleeping: fork <tt>Alarm.benchmarkThreads</tt>
+	 * threads that each sleep <tt>Alarm.benchmarkSleeps</tt> times for a
+	 * pseudo-random number of ticks, and print the simulated time and context
+	 * switches they took.
+	 */
+	public static void benchmark() {
+		final int numThreads = Config.getInteger("Alarm.benchmarkThreads", 20);
+		final int numSleeps = Config.getInteger("Alarm.benchmarkSleeps", 50);
+
+		final Semaphore done = new Semaphore(0);
+		long startTime = Machine.timer().getTime();
+		long startSwitches = KThread.numContextSwitches();
+
+		for (int i = 0; i < numThreads; i++) {
+			final int seed = i;
+			new KThread(new Runnable() {
+				public void run() {
+					int state = seed * 7919 + 1;
+					for (int j = 0; j < numSleeps; j++) {
+						state = state * 1103515245 + 12345;
+						ThreadedKernel.alarm.waitUntil(100 + (state >>> 8) % 5000);
+					}
+					done.V();
+				}
+			}).setName("sleeper " + i).fork();
+		}
+
+		for (int i = 0; i < numThreads; i++)
+			done.P();
+
+		System.out.println("Alarm benchmark: " + numThreads + " threads, "
+				+ numSleeps + " sleeps each, "
+				+ (Machine.timer().getTime() - startTime) + " ticks, "
+				+ (KThread.numContextSwitches() - startSwitches)
+				+ " context switches");
+	}
+
+	/** The time the wheel has advanced to. */
+	private long wheelTime;
+
+	private Sleeper[] slots = new Sleeper[numLevels * numSlots];
+
+	/** A bitmap of the occupied slots at each level. */
+	private long[] occupied = new long[numLevels];
+
+	private int numSleepers = 0;
+
+	private HashMap<KThread, Sleeper> sleepers = new HashMap<KThread, Sleeper>();
+
+	private boolean adaptive;
+
+	private long minQuantum, maxQuantum;
+
+	/** The thread whose time slice is running, and when the slice ends. */
+	private KThread sliceThread = null;
+
+	private long sliceEnd;
+
+	/** <tt>true</tt> while the timer interrupt is yielding the processor. */
+	private boolean preempting = false;
+
+	private static final int slotBits = 6, numSlots = 1 << slotBits,
+			slotMask = numSlots - 1;
+
+	/** Enough levels to cover every 64-bit time. */
+	private static final int numLevels = (64 + slotBits - 1) / slotBits;
 }
@@ -2,19 +2,22 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
- * 
+ *
  * <p>
- * You must implement this.
- * 
+ * Threads waiting with a timeout sleep in the alarm, so that either the alarm
+ * or a <tt>wake()</tt> can wake them; a wake cancels the alarm.
+ *
  * @see nachos.threads.Condition
  */
 public class Condition2 {
 	/**
 	 * Allocate a new condition variable.
-	 * 
+	 *
 	 * @param conditionLock the lock associated with this condition variable.
 	 * The current thread must hold this lock whenever it uses <tt>sleep()</tt>,
 	 * <tt>wake()</tt>, or <tt>wakeAll()</tt>.
@@ -32,7 +35,13 @@ public class Condition2 {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+		boolean intStatus = Machine.interrupt().disable();
+
+		waitQueue.add(new Waiter(KThread.currentThread(), false));
 		conditionLock.release();
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
 
 		conditionLock.acquire();
 	}
@@ -43,6 +52,24 @@ public class Condition2 {
 	 */
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (!waitQueue.isEmpty()) {
+			Waiter waiter = waitQueue.removeFirst();
+
+			if (!waiter.timed) {
+				waiter.thread.ready();
+				break;
+			}
+
+			// a thread in sleepFor() is asleep in the alarm, unless its
+			// timeout has already woken it, in which case wake the next one
+			if (ThreadedKernel.alarm.cancel(waiter.thread))
+				break;
+		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -51,19 +78,89 @@ public class Condition2 {
 	 */
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		while (!waitQueue.isEmpty())
+			wake();
 	}
 
-        /**
-	 * Atomically release the associated lock and go to sleep on
-	 * this condition variable until either (1) another thread
-	 * wakes it using <tt>wake()</tt>, or (2) the specified
-	 * <i>timeout</i> elapses.  The current thread must hold the
-	 * associated lock.  The thread will automatically reacquire
-	 * the lock before <tt>sleep()</tt> returns.
+	/**
+	 * Atomically release the associated lock and go to sleep on this
+	 * condition variable until either (1) another thread wakes it using
+	 * <tt>wake()</tt>, or (2) the specified <i>timeout</i> elapses. The
+	 * current thread must hold the associated lock. The thread will
+	 * automatically reacquire the lock before <tt>sleep()</tt> returns.
 	 */
-        public void sleepFor(long timeout) {
+	public void sleepFor(long timeout) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		if (timeout <= 0)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Waiter waiter = new Waiter(KThread.currentThread(), true);
+		waitQueue.add(waiter);
+		conditionLock.release();
+		ThreadedKernel.alarm.waitUntil(timeout);
+
+		// still queued if the timeout woke us
+		waitQueue.remove(waiter);
+
+		Machine.interrupt().restore(intStatus);
+
+		conditionLock.acquire();
 	}
 
-        private Lock conditionLock;
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock();
+		final Condition2 condition = new Condition2(lock);
+		final long[] woken = new long[1];
+
+		// a timeout with nobody to wake the thread
+		lock.acquire();
+		long start = Machine.timer().getTime();
+		condition.sleepFor(2000);
+		Lib.assertTrue(Machine.timer().getTime() >= start + 2000,
+				"sleepFor() woke too early");
+
+		// a wake well before the timeout
+		new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				condition.sleepFor(1000000);
+				woken[0] = Machine.timer().getTime();
+				lock.release();
+			}
+		}).setName("condition test").fork();
+
+		lock.release();
+		ThreadedKernel.alarm.waitUntil(1000);
+		lock.acquire();
+		start = Machine.timer().getTime();
+		condition.wake();
+		lock.release();
+
+		ThreadedKernel.alarm.waitUntil(1000);
+		Lib.assertTrue(woken[0] >= start && woken[0] < start + 1000000,
+				"wake() did not end sleepFor()");
+	}
+
+	private static class Waiter {
+		Waiter(KThread thread, boolean timed) {
+			this.thread = thread;
+			this.timed = timed;
+		}
+
+		KThread thread;
+
+		/** <tt>true</tt> if the thread is asleep in the alarm. */
+		boolean timed;
+	}
+
+	private Lock conditionLock;
+
+	private LinkedList<Waiter> waitQueue = new LinkedList<Waiter>();
 }
@@ -0,0 +1,427 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that divides the processor among the ready threads in
+ * proportion to their weights.
+ *
+ * <p>
+ * Each thread has a nice value, from -20 to 19, which is its priority here; a
+ * thread at nice 0 has a weight of 1024, and each step down in nice value
+ * gives a weight about 1.25 times larger. The ready queue charges each thread
+ * for the ticks it runs, scaled by 1024 over its weight, and keeps the
+ * threads in a tree ordered by this virtual runtime. The next thread to run
+ * is always the one with the smallest virtual runtime, so every thread gets
+ * its share of the processor however often it yields.
+ *
+ * <p>
+ * The ready threads share <tt>FairScheduler.latency</tt> ticks in
+ * proportion to their weights, each getting a time slice of at least
+ * <tt>FairScheduler.minGranularity</tt> ticks. New threads start at the
+ * smallest virtual runtime of any thread. A thread that has been blocked
+ * starts no more than <tt>FairScheduler.sleeperCredit</tt> ticks behind it,
+ * so that it runs soon after waking, but cannot save up credit by sleeping.
+ *
+ * <p>
+ * Other queues, for locks and semaphores, are FIFO.
+ */
+public class FairScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public FairScheduler() {
+		latency = Config.getInteger("FairScheduler.latency", 4000);
+		minGranularity = Config.getInteger("FairScheduler.minGranularity", 250);
+		sleeperCredit = Config.getInteger("FairScheduler.sleeperCredit",
+				(int) (latency / 2));
+		Lib.assertTrue(minGranularity > 0 && minGranularity <= latency
+				&& sleeperCredit >= 0);
+	}
+
+	/**
+	 * Allocate a new FIFO thread queue.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue(false);
+	}
+
+	/**
+	 * Allocate the ready queue, ordered by virtual runtime.
+	 *
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new FairQueue(true);
+		return readyQueue;
+	}
+
+	/**
+	 * Return the nice value of the specified thread.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).nice;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Set the nice value of the specified thread. A thread waiting in the
+	 * ready queue keeps its place until it next runs.
+	 */
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= niceMinimum && priority <= niceMaximum);
+
+		getThreadState(thread).nice = priority;
+	}
+
+	/**
+	 * Lower the nice value of the current thread, giving it a larger share.
+	 */
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int nice = getPriority(thread);
+		if (nice == niceMinimum)
+			ret = false;
+		else
+			setPriority(thread, nice - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Raise the nice value of the current thread, giving it a smaller share.
+	 */
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int nice = getPriority(thread);
+		if (nice == niceMaximum)
+			ret = false;
+		else
+			setPriority(thread, nice + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Return the share of <tt>FairScheduler.latency</tt> that the specified
+	 * thread is due, according to its weight and those of the ready threads.
+	 */
+	public long getQuantum(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (readyQueue == null)
+			return 0;
+
+		long weight = getThreadState(thread).weight();
+		long slice = latency * weight / (readyQueue.totalWeight + weight);
+
+		return Math.max(slice, minGranularity);
+	}
+
+	/**
+	 * Check that each thread is charged for the ticks it runs in inverse
+	 * proportion to its weight, that the smallest virtual runtime runs next,
+	 * and where new and woken threads start. Moving back the start of the
+	 * running thread's slice stands in for the time it ran.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		FairScheduler scheduler = new FairScheduler();
+		scheduler.sleeperCredit = 100;
+		FairQueue queue = (FairQueue) scheduler.newReadyQueue();
+		KThread[] threads = newTestThreads("fair test", 4);
+		ThreadState[] states = new ThreadState[threads.length];
+		for (int i = 0; i < threads.length; i++)
+			states[i] = scheduler.getThreadState(threads[i]);
+
+		// each runs 335 ticks, charged by weight: 1024 at nice 0, 335 at
+		// nice 5
+		scheduler.setPriority(threads[1], 5);
+		queue.waitForAccess(threads[0]);
+		queue.waitForAccess(threads[1]);
+		for (int i = 0; i < 2; i++) {
+			Lib.assertTrue(queue.nextThread() == threads[i]);
+			queue.runStart -= 335;
+			queue.waitForAccess(threads[i]);
+		}
+		Lib.assertTrue(states[0].vruntime == 335);
+		Lib.assertTrue(states[1].vruntime == 1024);
+
+		// the smallest virtual runtime runs next, and new threads start
+		// there
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		queue.waitForAccess(threads[2]);
+		Lib.assertTrue(states[2].vruntime == 335);
+
+		// a thread that slept through it all is credited no more than
+		// sleeperCredit
+		states[3].started = true;
+		queue.waitForAccess(threads[3]);
+		Lib.assertTrue(states[3].vruntime == 235);
+
+		queue.waitForAccess(threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/** The nice value of a new thread. */
+	public static final int niceDefault = 0;
+
+	/** The lowest nice value, giving the largest share. */
+	public static final int niceMinimum = -20;
+
+	/** The highest nice value, giving the smallest share. */
+	public static final int niceMaximum = 19;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> kept in a tree, ordered by virtual runtime for
+	 * the ready queue, and by arrival otherwise.
+	 */
+	protected class FairQueue extends ThreadQueue {
+		FairQueue(boolean ready) {
+			this.ready = ready;
+
+			waiting = new TreeSet<ThreadState>(ready ? byVirtualRuntime
+					: byArrival);
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			if (ready) {
+				if (state == running) {
+					// yielding, so pay for the time run
+					charge();
+				}
+				else if (state.started) {
+					// woken, so catch up, with some credit for sleeping
+					state.vruntime = Math.max(state.vruntime, minVruntime
+							- sleeperCredit);
+				}
+				else {
+					state.started = true;
+					state.vruntime = minVruntime;
+				}
+
+				state.queuedWeight = state.weight();
+				totalWeight += state.queuedWeight;
+			}
+
+			state.sequence = numArrivals++;
+			waiting.add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(waiting.isEmpty());
+
+			if (ready) {
+				ThreadState state = getThreadState(thread);
+				state.started = true;
+				running = state;
+				runStart = Machine.timer().getTime();
+			}
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the running thread has blocked or finished
+			if (ready && running != null)
+				charge();
+
+			ThreadState state = waiting.pollFirst();
+			if (state == null)
+				return null;
+
+			if (ready) {
+				totalWeight -= state.queuedWeight;
+				running = state;
+				runStart = Machine.timer().getTime();
+				updateMinVruntime();
+			}
+
+			return state.thread;
+		}
+
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (!waiting.remove(state))
+				return false;
+
+			if (ready)
+				totalWeight -= state.queuedWeight;
+
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (ThreadState state : waiting)
+				System.out.print(state.thread + ":" + state.vruntime + " ");
+			System.out.println();
+		}
+
+		/**
+		 * Charge the running thread for the ticks since it was dispatched.
+		 */
+		private void charge() {
+			long time = Machine.timer().getTime();
+
+			running.vruntime += (time - runStart) * niceZeroWeight
+					/ running.weight();
+			runStart = time;
+
+			updateMinVruntime();
+			running = null;
+		}
+
+		/**
+		 * Advance the smallest virtual runtime to that of the running thread
+		 * or the first ready thread, whichever is smaller. It never goes
+		 * back.
+		 */
+		private void updateMinVruntime() {
+			long least = Long.MAX_VALUE;
+			if (running != null)
+				least = running.vruntime;
+			if (!waiting.isEmpty())
+				least = Math.min(least, waiting.first().vruntime);
+
+			if (least != Long.MAX_VALUE)
+				minVruntime = Math.max(minVruntime, least);
+		}
+
+		/** <tt>true</tt> if this is the ready queue. */
+		private boolean ready;
+
+		private TreeSet<ThreadState> waiting;
+
+		/** The total weight of the waiting threads. */
+		long totalWeight = 0;
+
+		/** The thread given the processor last, if it is still running. */
+		private ThreadState running = null;
+
+		private long runStart;
+
+		private long minVruntime = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its nice value and virtual runtime.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		long weight() {
+			return weights[nice - niceMinimum];
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The nice value of the associated thread. */
+		protected int nice = niceDefault;
+
+		/** The ticks run, each scaled by 1024 over the weight at the time. */
+		protected long vruntime = 0;
+
+		/** <tt>false</tt> until the thread is first ready. */
+		boolean started = false;
+
+		/** The order in which threads were queued, to break ties. */
+		long sequence;
+
+		/** The weight counted in the ready queue's total. */
+		long queuedWeight;
+	}
+
+	private static final Comparator<ThreadState> byVirtualRuntime = new Comparator<ThreadState>() {
+		public int compare(ThreadState a, ThreadState b) {
+			if (a.vruntime != b.vruntime)
+				return (a.vruntime < b.vruntime) ? -1 : 1;
+			return Long.compare(a.sequence, b.sequence);
+		}
+	};
+
+	private static final Comparator<ThreadState> byArrival = new Comparator<ThreadState>() {
+		public int compare(ThreadState a, ThreadState b) {
+			return Long.compare(a.sequence, b.sequence);
+		}
+	};
+
+	/** The weight of each nice value, from -20 to 19. */
+	private static final int[] weights = { 88761, 71755, 56483, 46273, 36291,
+			29154, 23254, 18705, 14949, 11916, 9548, 7620, 6100, 4904, 3906,
+			3121, 2501, 1991, 1586, 1277, 1024, 820, 655, 526, 423, 335, 272,
+			215, 172, 137, 110, 87, 70, 56, 45, 36, 29, 23, 18, 15 };
+
+	private static final int niceZeroWeight = 1024;
+
+	private FairQueue readyQueue = null;
+
+	private long latency, minGranularity, sleeperCredit;
+
+	private long numArrivals = 0;
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -58,7 +60,7 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
 			currentThread = this;
@@ -269,8 +271,14 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
+			readyTime = Machine.timer().getTime();
 			readyQueue.waitForAccess(this);
+			numReadyThreads++;
+
+			if (ThreadedKernel.alarm != null)
+				ThreadedKernel.alarm.threadReady(this);
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -295,14 +303,23 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * When it finds nothing else ready, the idle thread waits for the next
+	 * interrupt with <tt>Interrupt.idle()</tt>, which skips simulated time
+	 * forward to it instead of spinning one tick at a time.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					if (numReadyThreads == 0)
+						Machine.interrupt().idle();
+
 					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -318,8 +335,18 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
 			nextThread = idleThread;
+		}
+		else {
+			numReadyThreads--;
+
+			if (!dispatchListeners.isEmpty()) {
+				long latency = Machine.timer().getTime() - nextThread.readyTime;
+				for (DispatchListener listener : dispatchListeners)
+					listener.dispatched(nextThread, latency);
+			}
+		}
 
 		nextThread.run();
 	}
@@ -353,6 +380,12 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		chargeCurrentThread();
+		if (this != currentThread) {
+			numContextSwitches++;
+			currentThread.account.countSwitch();
+		}
+
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -360,6 +393,127 @@ public class KThread {
 		currentThread.restoreState();
 	}
 
+	/**
+	 * Return the account that this thread's processor time and events are
+	 * charged to.
+	 * 
+	 * @return this thread's account.
+	 */
+	public Account getAccount() {
+		return account;
+	}
+
+	/**
+	 * Charge the current thread for the time it has run and the page faults
+	 * it has taken since the last charge. Called on every dispatch, and by a
+	 * scheduler that needs the charges to be up to date.
+	 */
+	static void chargeCurrentThread() {
+		long userTicks = Machine.userTicks();
+		long kernelTicks = Machine.kernelTicks();
+		int pageFaults = Machine.numPageFaults();
+
+		currentThread.account.charge(userTicks - chargedUserTicks, kernelTicks
+				- chargedKernelTicks, pageFaults - chargedPageFaults);
+
+		chargedUserTicks = userTicks;
+		chargedKernelTicks = kernelTicks;
+		chargedPageFaults = pageFaults;
+	}
+
+	/**
+	 * Return the time this thread was last made ready.
+	 * 
+	 * @return the time <tt>ready()</tt> was last called on this thread.
+	 */
+	long getReadyTime() {
+		return readyTime;
+	}
+
+	/**
+	 * Something to be told each time a thread from the ready queue is given
+	 * the processor, for example to measure how long threads wait in the
+	 * ready queue.
+	 * 
+	 * @see nachos.threads.KThread#addDispatchListener
+	 */
+	public interface DispatchListener {
+		/**
+		 * Called with interrupts disabled when a thread has been taken from
+		 * the ready queue, just before it runs.
+		 * 
+		 * @param thread the thread being dispatched.
+		 * @param latency the number of ticks since it was made ready.
+		 */
+		public void dispatched(KThread thread, long latency);
+	}
+
+	/**
+	 * Tell the specified listener about every dispatch from now on.
+	 * 
+	 * @param listener the listener to add.
+	 */
+	public static void addDispatchListener(DispatchListener listener) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		dispatchListeners.add(listener);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Stop telling the specified listener about dispatches.
+	 * 
+	 * @param listener the listener to remove.
+	 */
+	public static void removeDispatchListener(DispatchListener listener) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		dispatchListeners.remove(listener);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test whether this thread has finished. A scheduler can check this when
+	 * the thread gives up the processor, to drop its state for the thread.
+	 * 
+	 * @return <tt>true</tt> if this thread has called <tt>finish()</tt>.
+	 */
+	boolean isFinished() {
+		return status == statusFinished;
+	}
+
+	/**
+	 * Return the number of threads waiting in the ready queue.
+	 * 
+	 * @return the number of ready threads, not counting the current thread.
+	 */
+	static int numReadyThreads() {
+		return numReadyThreads;
+	}
+
+	/**
+	 * Change the number of ready threads, for a ready queue that holds some
+	 * threads back so that they cannot be dispatched yet. Those are not
+	 * counted, so that the idle thread does not wait for them.
+	 * 
+	 * @param delta the number of threads let back, less those held back.
+	 */
+	static void addReadyThreads(int delta) {
+		numReadyThreads += delta;
+	}
+
+	/**
+	 * Return the number of times the CPU has been switched from one thread to
+	 * another.
+	 * 
+	 * @return the number of context switches so far.
+	 */
+	public static long numContextSwitches() {
+		return numContextSwitches;
+	}
+
 	/**
 	 * Prepare this thread to be run. Set <tt>status</tt> to
 	 * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
@@ -375,6 +529,9 @@ public class KThread {
 
 		status = statusRunning;
 
+		if (ThreadedKernel.alarm != null)
+			ThreadedKernel.alarm.startSlice();
+
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
 			toBeDestroyed.tcb = null;
@@ -449,17 +606,42 @@ public class KThread {
 
 	private TCB tcb;
 
+	/**
+	 * The length of this thread's next time slice, in ticks, as adapted by
+	 * the alarm, or 0 if it has not had one yet.
+	 */
+	long quantum = 0;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
 	 */
 	private int id = numCreated++;
 
+	/** The account this thread is charged to. */
+	private Account account = new Account();
+
+	/** The time this thread was last added to the ready queue. */
+	private long readyTime;
+
+	/** The totals up to the last charge to the current thread. */
+	private static long chargedUserTicks = 0, chargedKernelTicks = 0;
+
+	private static int chargedPageFaults = 0;
+
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
 	private static ThreadQueue readyQueue = null;
 
+	/** The number of threads in the ready queue. */
+	private static int numReadyThreads = 0;
+
+	private static long numContextSwitches = 0;
+
+	/** The listeners told about each dispatch. */
+	private static ArrayList<DispatchListener> dispatchListeners = new ArrayList<DispatchListener>();
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,6 +23,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ * 
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * holding a lottery, adding or removing a thread, and changing a thread's
+ * tickets all take time logarithmic in the number of waiting threads. A
+ * change in the tickets of a waiting thread changes the tickets of the
+ * queue's holder by the same amount, and so on along the chain of holders.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -41,7 +46,479 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) getLotteryState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * Test if this module is working. Like the priority scheduler's test, the
+	 * queues are exercised directly.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		LotteryScheduler scheduler = new LotteryScheduler();
+		KThread[] threads = new KThread[4];
+		for (int i = 0; i < threads.length; i++)
+			threads[i] = new KThread().setName("lottery test " + i);
+
+		// 0 holds a, 1 holds b and waits for a, 2 and 3 wait for b
+		ThreadQueue a = scheduler.newThreadQueue(true);
+		ThreadQueue b = scheduler.newThreadQueue(true);
+		a.acquire(threads[0]);
+		b.acquire(threads[1]);
+		a.waitForAccess(threads[1]);
+		b.waitForAccess(threads[2]);
+		b.waitForAccess(threads[3]);
+		scheduler.setPriority(threads[2], 10);
+		scheduler.setPriority(threads[3], 100);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 111);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 112);
+
+		Lib.assertTrue(b.cancelThread(threads[3]));
+		Lib.assertTrue(!b.cancelThread(threads[3]));
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 12);
+
+		// the only waiter always wins, and brings no tickets of its own
+		Lib.assertTrue(b.nextThread() == threads[2]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 2);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[2]) == 10);
+		Lib.assertTrue(a.nextThread() == threads[1]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1);
+		Lib.assertTrue(a.nextThread() == null);
+		Lib.assertTrue(b.nextThread() == null);
+
+		// 1 and 2 wait on each other, then 3 waits on 1, and the walk stops
+		ThreadQueue c = scheduler.newThreadQueue(true);
+		ThreadQueue d = scheduler.newThreadQueue(true);
+		c.acquire(threads[1]);
+		d.acquire(threads[2]);
+		d.waitForAccess(threads[1]);
+		c.waitForAccess(threads[2]);
+		int before = scheduler.getEffectivePriority(threads[2]);
+		c.waitForAccess(threads[3]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[2])
+				== before + 100);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Measure the cost of a lottery with thousands of waiting threads, and
+	 * check that each thread wins in proportion to its tickets.
+	 */
+	public static void benchmark() {
+		int numWaiters = Config.getInteger("LotteryScheduler.benchmarkWaiters",
+				5000);
+		int numDraws = Config.getInteger("LotteryScheduler.benchmarkDraws",
+				1000000);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		LotteryScheduler scheduler = new LotteryScheduler();
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		// thread i has i+1 tickets
+		KThread[] waiters = new KThread[numWaiters];
+		long total = 0;
+		for (int i = 0; i < numWaiters; i++) {
+			waiters[i] = new KThread().setName("waiter " + i);
+			scheduler.setPriority(waiters[i], i + 1);
+			total += i + 1;
+			queue.waitForAccess(waiters[i]);
+		}
+
+		long[] wins = new long[numWaiters];
+		long start = System.nanoTime();
+		for (int i = 0; i < numDraws; i++) {
+			KThread winner = queue.nextThread();
+			wins[scheduler.getPriority(winner) - 1]++;
+			queue.waitForAccess(winner);
+		}
+		long time = System.nanoTime() - start;
+
+		// compare the wins of the top and bottom halves with their tickets
+		long topWins = 0;
+		for (int i = numWaiters / 2; i < numWaiters; i++)
+			topWins += wins[i];
+		long topTickets = total - (long) (numWaiters / 2) * (numWaiters / 2 + 1)
+				/ 2;
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("LotteryScheduler benchmark: " + numWaiters
+				+ " waiters, " + (time / numDraws) + " ns per draw, top half won "
+				+ (100.0 * topWins / numDraws) + "% with "
+				+ (100.0 * topTickets / total) + "% of the tickets");
+	}
+
+	/** The number of walks made by <tt>LotteryState.transfer()</tt>. */
+	private int numWalks = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (transferPriority && holder != null)
+				holder.transfer(-total);
+			holder = null;
+
+			LotteryState winner = draw();
+			if (winner == null)
+				return null;
+
+			remove(winner);
+			winner.waiting = null;
+			winner.acquire(this);
+
+			return winner.thread;
+		}
+
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			if (state.waiting != this)
+				return false;
+
+			remove(state);
+			state.waiting = null;
+
+			if (transferPriority && holder != null)
+				holder.transfer(-state.effectiveTickets);
+
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int slot = 0; slot < numSlots; slot++) {
+				if (slots[slot] != null)
+					System.out.print(slots[slot].thread + ":"
+							+ slots[slot].effectiveTickets + " ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads, without removing the
+		 * winner.
+		 * 
+		 * @return the winner, or <tt>null</tt> if no thread is waiting.
+		 */
+		LotteryState draw() {
+			if (size == 0)
+				return null;
+
+			long ticket;
+			if (size == 1)
+				ticket = 0;
+			else if (total <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) total);
+			else
+				ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+			// find the slot whose tickets cover the winning ticket
+			int index = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (index + step <= slots.length && tree[index + step] <= ticket) {
+					index += step;
+					ticket -= tree[index];
+				}
+			}
+
+			return slots[index];
+		}
+
+		void add(LotteryState state) {
+			int slot;
+			if (numFree > 0)
+				slot = free[--numFree];
+			else {
+				if (numSlots == slots.length)
+					grow();
+				slot = numSlots++;
+			}
+
+			slots[slot] = state;
+			state.slot = slot;
+			size++;
+			update(slot, state.effectiveTickets);
+		}
+
+		void remove(LotteryState state) {
+			int slot = state.slot;
+
+			update(slot, -state.effectiveTickets);
+			slots[slot] = null;
+			state.slot = -1;
+			size--;
+
+			if (numFree == free.length)
+				free = Arrays.copyOf(free, free.length * 2);
+			free[numFree++] = slot;
+		}
+
+		/**
+		 * Add to the tickets in the specified slot.
+		 */
+		void update(int slot, long delta) {
+			total += delta;
+			for (int index = slot + 1; index <= slots.length; index += index & -index)
+				tree[index] += delta;
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			slots = Arrays.copyOf(slots, slots.length * 2);
+			tree = new long[slots.length + 1];
+
+			for (int index = 1; index <= slots.length; index++) {
+				if (slots[index - 1] != null)
+					tree[index] += slots[index - 1].effectiveTickets;
+
+				int parent = index + (index & -index);
+				if (parent <= slots.length)
+					tree[parent] += tree[index];
+			}
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The thread with access, if this queue transfers tickets. */
+		LotteryState holder = null;
+
+		/** The waiting threads, each in its own slot. */
+		private LotteryState[] slots = new LotteryState[8];
+
+		/** A Fenwick tree over the tickets in the slots, indexed from 1. */
+		private long[] tree = new long[slots.length + 1];
+
+		/** Slots below <tt>numSlots</tt> that have been freed. */
+		private int[] free = new int[8];
+
+		private int numFree = 0, numSlots = 0;
+
+		/** The number of waiting threads, and their total tickets. */
+		private int size = 0;
+
+		private long total = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under a lottery scheduler.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Set the tickets of the associated thread to the specified value.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(long tickets) {
+			long delta = tickets - this.tickets;
+			this.tickets = tickets;
+
+			transfer(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on the specified
+		 * queue.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(waiting == null);
+
+			waiting = waitQueue;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.holder != null)
+				waitQueue.holder.transfer(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue whose resource the thread now holds.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			Lib.assertTrue(waitQueue.holder == null);
+
+			waitQueue.holder = this;
+			transfer(waitQueue.total);
+		}
+
+		/**
+		 * Add to the effective tickets of this thread, and of every holder
+		 * along the chain of queues it waits on. The walk stops if it comes
+		 * back to a thread it has already passed, which only a deadlock can
+		 * cause, so each thread on the chain gets the tickets once.
+		 * 
+		 * @param delta the number of tickets to add.
+		 */
+		void transfer(long delta) {
+			if (delta == 0)
+				return;
+
+			int walk = ++numWalks;
+			LotteryState state = this;
+
+			while (state.lastWalk != walk) {
+				state.lastWalk = walk;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waiting;
+				if (queue == null)
+					return;
+
+				queue.update(state.slot, delta);
+
+				if (!queue.transferPriority || queue.holder == null)
+					return;
+
+				state = queue.holder;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected long tickets = priorityDefault;
+
+		/** The tickets of the associated thread, plus those donated to it. */
+		protected long effectiveTickets = priorityDefault;
+
+		/** The queue the associated thread is waiting on, if any. */
+		LotteryQueue waiting = null;
+
+		/** The slot of the associated thread in that queue. */
+		int slot = -1;
+
+		/** The last walk of <tt>transfer()</tt> that passed this thread. */
+		private int lastWalk = 0;
 	}
 }
@@ -0,0 +1,422 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Each thread is at one of <tt>MLFQScheduler.levels</tt> levels, starting at
+ * the top one, level 0. A queue gives access to the threads at the highest
+ * level first, and to the threads at the same level in the order they started
+ * waiting. A thread at level <i>n</i> runs for a time slice of the <i>n</i>th
+ * of the ticks listed in <tt>MLFQScheduler.quanta</tt>, separated by commas;
+ * by default the top level gets 250 ticks, and each level below twice as many
+ * as the one above.
+ *
+ * <p>
+ * A thread that uses up its slice moves down a level, so compute-bound
+ * threads sink to long slices at the bottom. A thread that blocks before its
+ * slice is over moves up a level when it wakes, so a thread that mostly waits
+ * for input stays at the top and runs soon after it is woken. Every
+ * <tt>MLFQScheduler.boostInterval</tt> ticks, every thread goes back to the
+ * top level, so that the threads at the bottom cannot starve.
+ *
+ * <p>
+ * The alarm ends each slice at the length this scheduler gives it, which it
+ * can only do with the timer in one-shot mode. Threads dispatched from the
+ * top level count as interactive and the rest as batch work in the statistics
+ * printed when Nachos halts.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		Lib.assertTrue(Alarm.adaptiveQuantum(),
+				"MLFQScheduler needs Alarm.adaptiveQuantum");
+
+		numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+		Lib.assertTrue(numLevels > 0);
+
+		quanta = new long[numLevels];
+		String list = Config.getString("MLFQScheduler.quanta");
+		if (list != null) {
+			String[] values = list.split(",");
+			Lib.assertTrue(values.length == numLevels,
+					"MLFQScheduler.quanta must list one quantum per level");
+			for (int level = 0; level < numLevels; level++) {
+				try {
+					quanta[level] = Long.parseLong(values[level].trim());
+				}
+				catch (NumberFormatException e) {
+					Lib.assertNotReached("bad MLFQScheduler.quanta");
+				}
+				Lib.assertTrue(quanta[level] > 0);
+			}
+		}
+		else {
+			for (int level = 0; level < numLevels; level++)
+				quanta[level] = 250L << level;
+		}
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 20000);
+		Lib.assertTrue(boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new thread queue. Threads that wait on it are ordered by
+	 * level, but do not transfer anything to the thread with access.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new LevelQueue(false);
+	}
+
+	/**
+	 * Allocate the ready queue, which also moves woken threads up a level,
+	 * boosts every thread periodically, and records the scheduling
+	 * statistics.
+	 *
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return new LevelQueue(true);
+	}
+
+	/**
+	 * Return the level of the specified thread, 0 being the top.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public long getQuantum(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return quanta[getThreadState(thread).getLevel()];
+	}
+
+	public void quantumExpired(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		state.level = Math.min(state.getLevel() + 1, numLevels - 1);
+	}
+
+	/**
+	 * Check that threads move down a level when they use up a slice and up a
+	 * level when they wake, that the top level goes first, and that a boost
+	 * brings every thread back to the top, waiting or not.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		MLFQScheduler scheduler = new MLFQScheduler();
+		int bottom = scheduler.numLevels - 1;
+		LevelQueue queue = (LevelQueue) scheduler.newReadyQueue();
+		KThread[] threads = newTestThreads("MLFQ test", 3);
+
+		// using up a slice moves a thread down a level, as far as the bottom
+		for (int i = 0; i < 2; i++)
+			scheduler.quantumExpired(threads[1]);
+		for (int i = 0; i <= bottom; i++)
+			scheduler.quantumExpired(threads[2]);
+		Lib.assertTrue(scheduler.getPriority(threads[1]) == Math.min(2, bottom));
+		Lib.assertTrue(scheduler.getPriority(threads[2]) == bottom);
+
+		// becoming ready after blocking moves it up a level
+		for (int i = 0; i < threads.length; i++)
+			queue.waitForAccess(threads[i]);
+		Lib.assertTrue(scheduler.getPriority(threads[0]) == 0);
+		Lib.assertTrue(scheduler.getPriority(threads[1]) == Math.min(1, bottom));
+		Lib.assertTrue(scheduler.getPriority(threads[2]) == Math.max(
+				bottom - 1, 0));
+
+		// the top level first
+		Lib.assertTrue(queue.pickNextThread().thread == threads[0]);
+		Lib.assertTrue(queue.cancelThread(threads[0]));
+		Lib.assertTrue(queue.pickNextThread().thread == threads[1]);
+
+		// a boost moves the waiting threads to the top at once, and the
+		// others when they next ask for their level
+		for (int i = 0; i <= bottom; i++)
+			scheduler.quantumExpired(threads[0]);
+		scheduler.boost(queue);
+		Lib.assertTrue(scheduler.getThreadState(threads[2]).filedLevel == 0);
+		Lib.assertTrue(scheduler.getThreadState(threads[0]).level == bottom);
+		Lib.assertTrue(scheduler.getPriority(threads[0]) == 0);
+
+		Lib.assertTrue(queue.pickNextThread().thread == threads[1]);
+		Lib.assertTrue(queue.cancelThread(threads[1]));
+		Lib.assertTrue(queue.pickNextThread().thread == threads[2]);
+		Lib.assertTrue(queue.cancelThread(threads[2]));
+		Lib.assertTrue(queue.pickNextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Move every thread back to the top level. The threads in the ready queue
+	 * move now, and the others when they next ask for their level.
+	 */
+	private void boost(LevelQueue readyQueue) {
+		numBoosts++;
+
+		for (int level = 1; level < numLevels; level++) {
+			while (readyQueue.heads[level] != null) {
+				ThreadState state = readyQueue.heads[level];
+				readyQueue.remove(state);
+				state.getLevel();
+				readyQueue.add(state);
+			}
+		}
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO list of waiting threads for each
+	 * level.
+	 */
+	protected class LevelQueue extends ThreadQueue {
+		LevelQueue(boolean ready) {
+			this.ready = ready;
+
+			heads = new ThreadState[numLevels];
+			tails = new ThreadState[numLevels];
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waiting == null);
+
+			// a thread that was not running was blocked, or is new
+			if (ready && thread != KThread.currentThread())
+				state.level = Math.max(state.getLevel() - 1, 0);
+
+			state.getLevel();
+			add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (ready)
+				endDispatch();
+
+			ThreadState state = pickNextThread();
+			if (state == null)
+				return null;
+
+			remove(state);
+
+			if (ready)
+				startDispatch(state);
+
+			return state.thread;
+		}
+
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waiting != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			for (int level = 0; level < numLevels; level++) {
+				if (heads[level] != null)
+					return heads[level];
+			}
+
+			return null;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				for (ThreadState state = heads[level]; state != null; state = state.next)
+					System.out.print(state.thread + ":" + level + " ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Account for the thread that was given the processor last, which
+		 * has now given it up.
+		 */
+		private void endDispatch() {
+			long time = Machine.timer().getTime();
+
+			if (dispatched != null && !dispatchedInteractive)
+				Machine.recordBatchTicks(time - dispatchTime);
+			dispatched = null;
+
+			if (time >= nextBoost) {
+				boost(this);
+				nextBoost = time + boostInterval;
+			}
+		}
+
+		private void startDispatch(ThreadState state) {
+			dispatched = state;
+			dispatchTime = Machine.timer().getTime();
+			dispatchedInteractive = (state.filedLevel == 0);
+
+			Machine.recordDispatch(dispatchedInteractive, dispatchTime
+					- state.thread.getReadyTime());
+		}
+
+		void add(ThreadState state) {
+			int level = state.level;
+
+			state.waiting = this;
+			state.filedLevel = level;
+			state.prev = tails[level];
+			state.next = null;
+
+			if (tails[level] != null)
+				tails[level].next = state;
+			else
+				heads[level] = state;
+			tails[level] = state;
+
+			size++;
+		}
+
+		void remove(ThreadState state) {
+			int level = state.filedLevel;
+
+			if (state.prev != null)
+				state.prev.next = state.next;
+			else
+				heads[level] = state.next;
+
+			if (state.next != null)
+				state.next.prev = state.prev;
+			else
+				tails[level] = state.prev;
+
+			state.prev = state.next = null;
+			state.waiting = null;
+
+			size--;
+		}
+
+		/** <tt>true</tt> if this is the ready queue. */
+		private boolean ready;
+
+		private ThreadState[] heads, tails;
+
+		private int size = 0;
+
+		/** The thread last given the processor, if it is still running. */
+		private ThreadState dispatched = null;
+
+		private long dispatchTime;
+
+		private boolean dispatchedInteractive;
+
+		private long nextBoost = boostInterval;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and the queue it is waiting
+	 * on, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.boost = numBoosts;
+		}
+
+		/**
+		 * Return the level of the associated thread, moving it to the top
+		 * level first if every thread has been boosted since it last looked.
+		 *
+		 * @return the level of the associated thread.
+		 */
+		int getLevel() {
+			if (boost != numBoosts) {
+				boost = numBoosts;
+				level = 0;
+			}
+
+			return level;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The level of the associated thread. */
+		int level = 0;
+
+		/** The boost this thread has seen. */
+		private int boost;
+
+		/** The queue the associated thread is waiting on, if any. */
+		LevelQueue waiting = null;
+
+		/** The level of the list it is waiting in. */
+		int filedLevel;
+
+		ThreadState prev = null, next = null;
+	}
+
+	private int numLevels;
+
+	/** The time slice at each level. */
+	private long[] quanta;
+
+	private long boostInterval;
+
+	/** The number of boosts so far. */
+	private int numBoosts = 0;
+}
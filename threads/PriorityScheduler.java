@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +22,15 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Each queue keeps a FIFO list of waiting threads for every priority, and a
+ * bitmap of the priorities that have waiting threads, so the next thread is
+ * found in constant time. Each thread caches its effective priority, along
+ * with a count of the queues it holds whose highest waiting priority is each
+ * priority. When a waiting thread's effective priority changes, it moves to
+ * another list, and the change is passed along the chain of holders only as
+ * far as it changes another effective priority.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -125,6 +131,146 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
+	/**
+	 * Test if this module is working. The queues are exercised directly, with
+	 * threads that are never forked, so the test does not depend on the
+	 * scheduler the kernel is using.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler scheduler = new PriorityScheduler();
+		KThread[] threads = new KThread[4];
+		for (int i = 0; i < threads.length; i++)
+			threads[i] = new KThread().setName("priority test " + i);
+
+		// highest priority first, then FIFO
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		scheduler.setPriority(threads[0], 2);
+		scheduler.setPriority(threads[3], 2);
+		for (int i = 0; i < threads.length; i++)
+			queue.waitForAccess(threads[i]);
+		Lib.assertTrue(queue.cancelThread(threads[3]));
+		Lib.assertTrue(!queue.cancelThread(threads[3]));
+		scheduler.setPriority(threads[2], 3);
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// donation along a chain: 0 holds a, 1 holds b and waits for a, 2
+		// waits for b
+		for (int i = 0; i < threads.length; i++)
+			scheduler.setPriority(threads[i], priorityDefault);
+		ThreadQueue a = scheduler.newThreadQueue(true);
+		ThreadQueue b = scheduler.newThreadQueue(true);
+		a.acquire(threads[0]);
+		b.acquire(threads[1]);
+		a.waitForAccess(threads[1]);
+		b.waitForAccess(threads[2]);
+		scheduler.setPriority(threads[2], 6);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 6);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 6);
+
+		// the donation goes when the donor stops waiting
+		Lib.assertTrue(b.cancelThread(threads[2]));
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1);
+
+		// and moves to the next holder with the resource
+		a.waitForAccess(threads[3]);
+		scheduler.setPriority(threads[3], 5);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 5);
+		Lib.assertTrue(a.nextThread() == threads[3]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[3]) == 5);
+		Lib.assertTrue(a.nextThread() == threads[1]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[3]) == 5);
+		Lib.assertTrue(a.nextThread() == null);
+		Lib.assertTrue(b.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Measure the queue operations: donation through a deep chain of locks,
+	 * each held by a thread waiting for the one before, and a queue with
+	 * thousands of waiting threads.
+	 */
+	public static void benchmark() {
+		int depth = Config.getInteger("PriorityScheduler.benchmarkDepth", 1000);
+		int numWaiters = Config.getInteger("PriorityScheduler.benchmarkWaiters",
+				5000);
+		int numRounds = Config.getInteger("PriorityScheduler.benchmarkRounds",
+				100);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler scheduler = new PriorityScheduler();
+
+		// thread i holds lock i and waits for lock i-1
+		KThread[] chain = new KThread[depth];
+		ThreadQueue[] locks = new ThreadQueue[depth];
+		for (int i = 0; i < depth; i++) {
+			chain[i] = new KThread().setName("chain " + i);
+			locks[i] = scheduler.newThreadQueue(true);
+			locks[i].acquire(chain[i]);
+			if (i > 0)
+				locks[i - 1].waitForAccess(chain[i]);
+		}
+
+		KThread donor = new KThread().setName("donor");
+		locks[depth - 1].waitForAccess(donor);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numRounds; i++) {
+			scheduler.setPriority(donor, priorityMaximum);
+			Lib.assertTrue(scheduler.getEffectivePriority(chain[0]) == priorityMaximum);
+			scheduler.setPriority(donor, priorityMinimum);
+		}
+		long chainTime = System.nanoTime() - start;
+
+		// a raise below the chain's donation stops at the first holder
+		scheduler.setPriority(chain[depth / 2], priorityMaximum);
+		start = System.nanoTime();
+		for (int i = 0; i < numRounds; i++) {
+			scheduler.setPriority(donor, priorityMaximum - 1);
+			scheduler.setPriority(donor, priorityMinimum);
+		}
+		long cutTime = System.nanoTime() - start;
+
+		// many waiters, with random priorities
+		KThread[] waiters = new KThread[numWaiters];
+		for (int i = 0; i < numWaiters; i++) {
+			waiters[i] = new KThread().setName("waiter " + i);
+			scheduler.setPriority(waiters[i], Lib.random(priorityMaximum + 1));
+		}
+
+		ThreadQueue queue = scheduler.newThreadQueue(true);
+		queue.acquire(new KThread().setName("holder"));
+		start = System.nanoTime();
+		for (int round = 0; round < numRounds / 10 + 1; round++) {
+			for (int i = 0; i < numWaiters; i++)
+				queue.waitForAccess(waiters[i]);
+			int last = priorityMaximum;
+			for (int i = 0; i < numWaiters; i++) {
+				int priority = scheduler.getPriority(queue.nextThread());
+				Lib.assertTrue(priority <= last);
+				last = priority;
+			}
+			Lib.assertTrue(queue.nextThread() == null);
+		}
+		long queueTime = System.nanoTime() - start;
+		long numOps = 2L * numWaiters * (numRounds / 10 + 1);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("PriorityScheduler benchmark: donation through "
+				+ depth + " locks " + (chainTime / (2 * numRounds)) + " ns, "
+				+ "stopped early " + (cutTime / (2 * numRounds)) + " ns, "
+				+ numWaiters + " waiters " + (queueTime / numOps)
+				+ " ns per operation");
+	}
+
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
 	 */
@@ -145,14 +291,40 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				release();
+				return null;
+			}
+
+			int oldTop = top();
+			remove(next);
+			next.waiting = null;
+
+			// the waiters now donate to the new holder, not the old one
+			if (transferPriority && holder != null)
+				holder.donationChanged(oldTop, -1);
+			holder = null;
+
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		public boolean cancelThread(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return false;
+
+			ThreadState state = getThreadState(thread);
+			if (state.waiting != this)
+				return false;
+
+			int oldTop = top();
+			remove(state);
+			state.waiting = null;
+			topChanged(oldTop);
+
+			return true;
 		}
 
 		/**
@@ -162,13 +334,98 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			int top = top();
+			return (top < 0) ? null : heads[top];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int priority = priorityMaximum; priority >= priorityMinimum; priority--) {
+				for (ThreadState state = heads[priority]; state != null; state = state.next)
+					System.out.print(state.thread + ":" + priority + " ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Return the highest effective priority of the waiting threads.
+		 * 
+		 * @return the highest waiting priority, or -1 if no thread is waiting.
+		 */
+		int top() {
+			return 31 - Integer.numberOfLeadingZeros(occupied);
+		}
+
+		/**
+		 * Give up the resource without handing it to a waiting thread.
+		 */
+		private void release() {
+			if (transferPriority && holder != null)
+				holder.donationChanged(top(), -1);
+			holder = null;
+		}
+
+		/**
+		 * Tell the holder that the highest waiting priority has changed.
+		 */
+		private void topChanged(int oldTop) {
+			int newTop = top();
+			if (transferPriority && holder != null && newTop != oldTop)
+				holder.donationChanged(oldTop, newTop);
+		}
+
+		/**
+		 * Add a waiting thread to the list for its effective priority, after
+		 * every thread there that has waited longer.
+		 */
+		void add(ThreadState state) {
+			int priority = state.effectivePriority;
+
+			ThreadState after = tails[priority];
+			while (after != null && after.sequence > state.sequence)
+				after = after.prev;
+
+			state.prev = after;
+			if (after != null) {
+				state.next = after.next;
+				after.next = state;
+			}
+			else {
+				state.next = heads[priority];
+				heads[priority] = state;
+			}
+
+			if (state.next != null)
+				state.next.prev = state;
+			else
+				tails[priority] = state;
+
+			occupied |= 1 << priority;
+		}
+
+		/**
+		 * Remove a waiting thread from the list for the specified priority.
+		 */
+		void remove(ThreadState state, int priority) {
+			if (state.prev != null)
+				state.prev.next = state.next;
+			else
+				heads[priority] = state.next;
+
+			if (state.next != null)
+				state.next.prev = state.prev;
+			else
+				tails[priority] = state.prev;
+
+			state.prev = state.next = null;
+
+			if (heads[priority] == null)
+				occupied &= ~(1 << priority);
+		}
+
+		void remove(ThreadState state) {
+			remove(state, state.effectivePriority);
 		}
 
 		/**
@@ -176,6 +433,16 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread with access, if this queue transfers priority. */
+		ThreadState holder = null;
+
+		/** The waiting threads, a FIFO list for each priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1],
+				tails = new ThreadState[priorityMaximum + 1];
+
+		/** A bitmap of the priorities that have waiting threads. */
+		private int occupied = 0;
 	}
 
 	/**
@@ -213,8 +480,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -228,7 +494,11 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			PriorityQueue queue = waiting;
+			int oldTop = (queue != null) ? queue.top() : -1;
+
+			if (update() && queue != null)
+				queue.topChanged(oldTop);
 		}
 
 		/**
@@ -244,7 +514,15 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waiting == null);
+
+			int oldTop = waitQueue.top();
+
+			waiting = waitQueue;
+			sequence = numWaits++;
+			waitQueue.add(this);
+
+			waitQueue.topChanged(oldTop);
 		}
 
 		/**
@@ -258,13 +536,100 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			Lib.assertTrue(waitQueue.holder == null);
+
+			waitQueue.holder = this;
+			donationChanged(-1, waitQueue.top());
+		}
+
+		/**
+		 * Called when the highest waiting priority of a queue this thread
+		 * holds changes. Updates the effective priority of this thread, and of
+		 * the holders further along the chain, for as long as they change.
+		 * 
+		 * @param oldTop the old highest waiting priority, or -1.
+		 * @param newTop the new highest waiting priority, or -1.
+		 */
+		void donationChanged(int oldTop, int newTop) {
+			ThreadState state = this;
+
+			while (true) {
+				if (oldTop >= 0 && --state.donations[oldTop] == 0)
+					state.donated &= ~(1 << oldTop);
+				if (newTop >= 0 && state.donations[newTop]++ == 0)
+					state.donated |= 1 << newTop;
+
+				PriorityQueue queue = state.waiting;
+				int queueTop = (queue != null) ? queue.top() : -1;
+
+				if (!state.update())
+					return;
+
+				if (queue == null || !queue.transferPriority
+						|| queue.holder == null || queue.top() == queueTop)
+					return;
+
+				oldTop = queueTop;
+				newTop = queue.top();
+				state = queue.holder;
+			}
+		}
+
+		/**
+		 * Recompute the effective priority from the priority and the
+		 * donations, and move this thread to the right list of the queue it
+		 * waits on. The caller passes the change on to that queue's holder.
+		 * 
+		 * @return <tt>true</tt> if the effective priority changed.
+		 */
+		private boolean update() {
+			int donation = 31 - Integer.numberOfLeadingZeros(donated);
+			int effective = Math.max(priority, donation);
+
+			if (effective == effectivePriority)
+				return false;
+
+			if (waiting != null)
+				waiting.remove(this, effectivePriority);
+
+			effectivePriority = effective;
+
+			if (waiting != null)
+				waiting.add(this);
+
+			return true;
 		}
 
 		/** The thread with which this object is associated. */
 		protected KThread thread;
 
 		/** The priority of the associated thread. */
-		protected int priority;
+		protected int priority = -1;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = -1;
+
+		/** The queue the associated thread is waiting on, if any. */
+		PriorityQueue waiting = null;
+
+		/** The order in which threads started waiting, across all queues. */
+		long sequence;
+
+		/** Links in the waiting list. */
+		ThreadState prev = null, next = null;
+
+		/**
+		 * The number of held queues whose highest waiting priority is each
+		 * priority, and a bitmap of the priorities with a nonzero count.
+		 */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		private int donated = 0;
 	}
+
+	/** The number of times any thread has started waiting on a queue. */
+	private long numWaits = 0;
 }
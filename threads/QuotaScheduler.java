@@ -0,0 +1,244 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A scheduler that enforces the CPU quotas of accounts over the scheduler
+ * named by <tt>QuotaScheduler.base</tt>.
+ *
+ * <p>
+ * A thread charged to an account whose quota is used up for the current
+ * period is held back from the ready queue until that period is over. A
+ * running thread is preempted when the quotas over it run out, so no group
+ * of threads can run for more than its quota in any period, however many
+ * threads it has. Everything else is left to the base scheduler.
+ *
+ * <p>
+ * Preempting a thread when its quota runs out, and taking back held threads
+ * when a period ends, rely on the timer deadlines this scheduler asks the
+ * alarm for, which it only honors in one-shot mode.
+ *
+ * @see nachos.threads.Account#setQuota
+ */
+public class QuotaScheduler extends Scheduler {
+	/**
+	 * Allocate a new quota scheduler, and the scheduler under it.
+	 */
+	public QuotaScheduler() {
+		Lib.assertTrue(Alarm.adaptiveQuantum(),
+				"QuotaScheduler needs Alarm.adaptiveQuantum");
+
+		base = (Scheduler) Lib.constructObject(Config.getString(
+				"QuotaScheduler.base", "nachos.threads.RoundRobinScheduler"));
+	}
+
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return base.newThreadQueue(transferPriority);
+	}
+
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new ReadyQueue(base.newReadyQueue());
+		return readyQueue;
+	}
+
+	public int getPriority(KThread thread) {
+		return base.getPriority(thread);
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return base.getEffectivePriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		base.setPriority(thread, priority);
+	}
+
+	public boolean increasePriority() {
+		return base.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+		return base.decreasePriority();
+	}
+
+	public long getQuantum(KThread thread) {
+		return base.getQuantum(thread);
+	}
+
+	public void quantumExpired(KThread thread) {
+		base.quantumExpired(thread);
+	}
+
+	/**
+	 * Ask for an interrupt when the running thread's quotas run out, or when
+	 * a held-back thread's quota starts a new period.
+	 */
+	public long nextEventTime() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+		long next = base.nextEventTime();
+
+		long remaining = KThread.currentThread().getAccount().remaining(time);
+		if (remaining != Long.MAX_VALUE)
+			next = Math.min(next, time + Math.max(remaining, 1));
+
+		if (readyQueue != null) {
+			for (KThread thread : readyQueue.held) {
+				Account account = thread.getAccount().exhausted(time);
+				next = Math.min(next, (account != null) ? account.nextPeriod()
+						: time);
+			}
+		}
+
+		return next;
+	}
+
+	/**
+	 * Check that the threads of a group over its quota are held back, and no
+	 * longer count as ready, until the next period, including a thread whose
+	 * quota runs out while it waits. Accounts are charged directly, and the
+	 * current thread sleeps to let time pass. The number of ready threads is
+	 * kept as <tt>ready()</tt> and <tt>runNextThread()</tt> in
+	 * <tt>KThread</tt> would keep it.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		QuotaScheduler scheduler = new QuotaScheduler();
+		ThreadQueue queue = scheduler.newReadyQueue();
+		Account group = new Account();
+		KThread[] threads = newTestThreads("quota test", 3);
+		threads[0].getAccount().setParent(group);
+		threads[1].getAccount().setParent(group);
+		group.setQuota(100, 400);
+		int numReady = KThread.numReadyThreads();
+
+		// a group over its quota is held back, and its threads do not count
+		// as ready, so the idle thread does not wait for them
+		threads[0].getAccount().charge(0, 100, 0);
+		for (int i = 0; i < threads.length; i++) {
+			queue.waitForAccess(threads[i]);
+			KThread.addReadyThreads(1);
+		}
+		Lib.assertTrue(KThread.numReadyThreads() == numReady + 1);
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		KThread.addReadyThreads(-1);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// until the next period of the quota
+		ThreadedKernel.alarm.waitUntil(400);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		KThread.addReadyThreads(-1);
+		Lib.assertTrue(KThread.numReadyThreads() == numReady + 1);
+
+		// a thread whose quota ran out while it waited is held back when it
+		// would have been dispatched
+		threads[0].getAccount().charge(0, 100, 0);
+		Lib.assertTrue(queue.nextThread() == null);
+		Lib.assertTrue(KThread.numReadyThreads() == numReady);
+
+		ThreadedKernel.alarm.waitUntil(400);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		KThread.addReadyThreads(-1);
+		Lib.assertTrue(KThread.numReadyThreads() == numReady);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The ready queue, which holds back the threads whose quotas are used up,
+	 * and passes the others on to the base ready queue.
+	 */
+	private class ReadyQueue extends ThreadQueue {
+		ReadyQueue(ThreadQueue baseQueue) {
+			this.baseQueue = baseQueue;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			KThread.chargeCurrentThread();
+
+			if (thread.getAccount().exhausted(Machine.timer().getTime()) != null)
+				hold(thread);
+			else
+				baseQueue.waitForAccess(thread);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			baseQueue.acquire(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			KThread.chargeCurrentThread();
+			long time = Machine.timer().getTime();
+
+			// let back the threads whose quotas have started a new period
+			for (Iterator<KThread> i = held.iterator(); i.hasNext();) {
+				KThread thread = i.next();
+				if (thread.getAccount().exhausted(time) == null) {
+					i.remove();
+					KThread.addReadyThreads(1);
+					baseQueue.waitForAccess(thread);
+				}
+			}
+
+			// the quota of a thread may have run out while it waited
+			while (true) {
+				KThread thread = baseQueue.nextThread();
+				if (thread == null
+						|| thread.getAccount().exhausted(time) == null)
+					return thread;
+
+				hold(thread);
+			}
+		}
+
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (held.remove(thread)) {
+				KThread.addReadyThreads(1);
+				return true;
+			}
+
+			return baseQueue.cancelThread(thread);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (KThread thread : held)
+				System.out.print(thread + ":held ");
+			baseQueue.print();
+		}
+
+		/**
+		 * Hold back a ready thread, which then no longer counts as ready.
+		 */
+		private void hold(KThread thread) {
+			held.add(thread);
+			KThread.addReadyThreads(-1);
+		}
+
+		private ThreadQueue baseQueue;
+
+		/** The threads held back until their quotas start a new period. */
+		private ArrayList<KThread> held = new ArrayList<KThread>();
+	}
+
+	private Scheduler base;
+
+	private ReadyQueue readyQueue = null;
+}
@@ -0,0 +1,506 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that runs real-time threads earliest deadline first, ahead of
+ * the threads of a best-effort scheduler.
+ *
+ * <p>
+ * A thread becomes real-time by reserving a budget of ticks in every period,
+ * to be used by a deadline measured from the start of the period. A
+ * reservation is only accepted if the sum, over all reservations, of each
+ * budget divided by the smaller of its deadline and period stays within
+ * <tt>RealTimeScheduler.utilizationBound</tt>, which is enough for every
+ * deadline to be met. Each period starts a new job, which the thread ends by
+ * calling <tt>waitForNextPeriod()</tt>.
+ *
+ * <p>
+ * A real-time thread with budget left always runs ahead of every best-effort
+ * thread, and becoming ready programs the timer to preempt the running
+ * thread at once. Its time slice ends when its budget runs out; it then
+ * competes as a best-effort thread until its next period, which it leaves at
+ * the first dispatch after the period starts. A thread that finishes still
+ * holding a reservation gives it up then.
+ *
+ * <p>
+ * Everything else is left to the scheduler named by
+ * <tt>RealTimeScheduler.bestEffort</tt>. Preempting at once, and ending a
+ * slice when the budget runs out, both move the timer deadline, so the timer
+ * must be in one-shot mode. The number of jobs and of missed deadlines are
+ * printed with the statistics when Nachos halts.
+ */
+public class RealTimeScheduler extends Scheduler {
+	/**
+	 * Allocate a new real-time scheduler, and the best-effort scheduler under
+	 * it.
+	 */
+	public RealTimeScheduler() {
+		Lib.assertTrue(Alarm.adaptiveQuantum(),
+				"RealTimeScheduler needs Alarm.adaptiveQuantum");
+
+		bestEffort = (Scheduler) Lib.constructObject(Config.getString(
+				"RealTimeScheduler.bestEffort",
+				"nachos.threads.RoundRobinScheduler"));
+		utilizationBound = Config.getDouble(
+				"RealTimeScheduler.utilizationBound", 0.9);
+	}
+
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return bestEffort.newThreadQueue(transferPriority);
+	}
+
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new ReadyQueue(bestEffort.newReadyQueue());
+		return readyQueue;
+	}
+
+	public int getPriority(KThread thread) {
+		return bestEffort.getPriority(thread);
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return bestEffort.getEffectivePriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		bestEffort.setPriority(thread, priority);
+	}
+
+	public boolean increasePriority() {
+		return bestEffort.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+		return bestEffort.decreasePriority();
+	}
+
+	/**
+	 * Give a real-time thread the rest of its budget, and leave the others to
+	 * the best-effort scheduler.
+	 */
+	public long getQuantum(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Reservation reservation = reservations.get(thread);
+		if (reservation != null && reservation.budget > 0)
+			return reservation.budget;
+
+		return bestEffort.getQuantum(thread);
+	}
+
+	public void quantumExpired(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Reservation reservation = reservations.get(thread);
+		if (reservation == null || readyQueue.running != reservation)
+			bestEffort.quantumExpired(thread);
+	}
+
+	public long nextEventTime() {
+		return bestEffort.nextEventTime();
+	}
+
+	/**
+	 * Reserve <i>budget</i> ticks of every <i>period</i> for the current
+	 * thread, to be used within <i>deadline</i> ticks of the start of the
+	 * period, replacing any reservation it already has. The first period
+	 * starts now.
+	 *
+	 * @param period the length of each period.
+	 * @param budget the ticks reserved in each period.
+	 * @param deadline the time from the start of a period by which the
+	 * thread must have run for its budget.
+	 * @return <tt>true</tt> if the reservation was accepted, or
+	 * <tt>false</tt> if it would exceed the utilization bound.
+	 */
+	public boolean reserve(long period, long budget, long deadline) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean accepted = reserve(KThread.currentThread(), period, budget,
+				deadline);
+
+		Machine.interrupt().restore(intStatus);
+
+		return accepted;
+	}
+
+	private boolean reserve(KThread thread, long period, long budget,
+			long deadline) {
+		Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+		Reservation old = reservations.get(thread);
+		double density = (double) budget / deadline;
+		double others = utilization - ((old != null) ? old.density() : 0);
+
+		boolean accepted = (others + density <= utilizationBound);
+		if (accepted) {
+			Reservation reservation = new Reservation(thread, period, budget,
+					deadline);
+			reservation.release(Machine.timer().getTime());
+
+			if (old != null)
+				readyQueue.forget(old);
+
+			utilization = others + density;
+			reservations.put(thread, reservation);
+		}
+
+		return accepted;
+	}
+
+	/**
+	 * Cancel the reservation of the current thread, making it a best-effort
+	 * thread again. This is done automatically when the thread finishes.
+	 */
+	public void cancelReservation() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		cancelReservation(KThread.currentThread());
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private void cancelReservation(KThread thread) {
+		Reservation reservation = reservations.remove(thread);
+		if (reservation != null) {
+			readyQueue.forget(reservation);
+			utilization -= reservation.density();
+		}
+	}
+
+	/**
+	 * End the current job of the current thread, which must have a
+	 * reservation, and sleep until its next period starts.
+	 */
+	public void waitForNextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Reservation reservation = reservations.get(KThread.currentThread());
+		Lib.assertTrue(reservation != null);
+
+		long time = Machine.timer().getTime();
+		reservation.complete(time);
+
+		if (reservation.nextRelease > time)
+			ThreadedKernel.alarm.waitUntil(reservation.nextRelease - time);
+		else
+			reservation.release(time);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Count a real-time job that has ended, or run into the next period, and
+	 * report it to the machine unless this scheduler is only being tested.
+	 * 
+	 * @param missed <tt>true</tt> if the job missed its deadline.
+	 */
+	private void recordJob(boolean missed) {
+		numJobs++;
+		if (missed)
+			numDeadlineMisses++;
+
+		if (reportJobs)
+			Machine.recordRealTimeJob(missed);
+	}
+
+	/**
+	 * Check admission against the utilization bound, earliest deadline first
+	 * order ahead of best-effort threads, and that a thread over its budget
+	 * waits with the best-effort threads until its next period. The current
+	 * thread sleeps to let time pass.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		RealTimeScheduler scheduler = new RealTimeScheduler();
+		scheduler.utilizationBound = 0.9;
+		scheduler.reportJobs = false;
+		ThreadQueue queue = scheduler.newReadyQueue();
+		KThread[] threads = newTestThreads("real-time test", 4);
+
+		// densities 0.2, 0.4 and 0.1
+		Lib.assertTrue(scheduler.reserve(threads[0], 400, 40, 200));
+		Lib.assertTrue(scheduler.reserve(threads[1], 400, 40, 100));
+		Lib.assertTrue(scheduler.reserve(threads[2], 400, 40, 400));
+
+		// admission stops at the bound, and cancelling gives the density back
+		Lib.assertTrue(!scheduler.reserve(threads[3], 400, 40, 100));
+		Lib.assertTrue(scheduler.reserve(threads[3], 400, 40, 400));
+		scheduler.cancelReservation(threads[3]);
+		Lib.assertTrue(Math.abs(scheduler.utilization - 0.7) < 1e-9);
+
+		// earliest deadline first, ahead of the best-effort threads
+		queue.waitForAccess(threads[3]);
+		for (int i = 0; i < 3; i++)
+			queue.waitForAccess(threads[i]);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// a thread that runs past its budget competes as a best-effort
+		// thread
+		queue.waitForAccess(threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		ThreadedKernel.alarm.waitUntil(50);
+		scheduler.reservations.get(threads[0]).complete(
+				Machine.timer().getTime());
+		Lib.assertTrue(scheduler.numJobs == 1
+				&& scheduler.numDeadlineMisses == 0);
+		queue.waitForAccess(threads[3]);
+		queue.waitForAccess(threads[0]);
+		queue.waitForAccess(threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+
+		// until its next period starts
+		queue.waitForAccess(threads[3]);
+		queue.waitForAccess(threads[0]);
+		ThreadedKernel.alarm.waitUntil(400);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(scheduler.reservations.get(threads[0]).budget == 40);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == null);
+		Lib.assertTrue(scheduler.numJobs == 1);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The ready queue, which holds the real-time threads with budget left,
+	 * by deadline, in front of the best-effort ready queue.
+	 */
+	private class ReadyQueue extends ThreadQueue {
+		ReadyQueue(ThreadQueue bestEffortQueue) {
+			this.bestEffortQueue = bestEffortQueue;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Reservation reservation = reservations.get(thread);
+			if (reservation == null) {
+				bestEffortQueue.waitForAccess(thread);
+				return;
+			}
+
+			long time = Machine.timer().getTime();
+			if (reservation == running)
+				charge(time);
+
+			throttled.remove(reservation);
+			reservation.release(time);
+
+			if (reservation.budget > 0) {
+				reservation.sequence = numArrivals++;
+				edf.add(reservation);
+
+				// preempt a thread that should not be running
+				if (thread != KThread.currentThread()
+						&& (running == null || running.compareTo(reservation) > 0))
+					Machine.timer().setDeadline(time);
+			}
+			else {
+				throttled.add(reservation);
+				bestEffortQueue.waitForAccess(thread);
+			}
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(reservations.get(thread) == null);
+			bestEffortQueue.acquire(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long time = Machine.timer().getTime();
+
+			// the running thread has blocked or finished
+			if (running != null)
+				charge(time);
+
+			// a finished thread can no longer use its reservation
+			if (KThread.currentThread().isFinished())
+				cancelReservation(KThread.currentThread());
+
+			// take back the throttled threads whose next period has started
+			for (Iterator<Reservation> i = throttled.iterator(); i.hasNext();) {
+				Reservation reservation = i.next();
+				if (reservation.nextRelease <= time
+						&& bestEffortQueue.cancelThread(reservation.thread)) {
+					i.remove();
+					reservation.release(time);
+					reservation.sequence = numArrivals++;
+					edf.add(reservation);
+				}
+			}
+
+			Reservation next = edf.pollFirst();
+			if (next != null) {
+				running = next;
+				runStart = time;
+				return next.thread;
+			}
+
+			return bestEffortQueue.nextThread();
+		}
+
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Reservation reservation = reservations.get(thread);
+			if (reservation != null && edf.remove(reservation))
+				return true;
+
+			if (reservation != null)
+				throttled.remove(reservation);
+
+			return bestEffortQueue.cancelThread(thread);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Reservation reservation : edf)
+				System.out.print(reservation.thread + ":"
+						+ reservation.deadline + " ");
+			bestEffortQueue.print();
+		}
+
+		/**
+		 * Drop a reservation of a thread that is running, so it is in no
+		 * queue but maybe the throttled list.
+		 */
+		void forget(Reservation reservation) {
+			throttled.remove(reservation);
+			if (running == reservation)
+				running = null;
+		}
+
+		/**
+		 * Charge the running real-time thread for the ticks since it was
+		 * dispatched.
+		 */
+		private void charge(long time) {
+			running.budget -= time - runStart;
+			running = null;
+		}
+
+		private ThreadQueue bestEffortQueue;
+
+		/** The real-time threads with budget left, by deadline. */
+		private TreeSet<Reservation> edf = new TreeSet<Reservation>();
+
+		/** The real-time threads that have run out of budget. */
+		private ArrayList<Reservation> throttled = new ArrayList<Reservation>();
+
+		/** The real-time thread given the processor last, if still running. */
+		private Reservation running = null;
+
+		private long runStart;
+	}
+
+	/**
+	 * The reservation of a real-time thread, and the state of its current
+	 * job.
+	 */
+	private class Reservation implements Comparable<Reservation> {
+		Reservation(KThread thread, long period, long budget, long deadline) {
+			this.thread = thread;
+			this.period = period;
+			this.reservedBudget = budget;
+			this.relativeDeadline = deadline;
+
+			nextRelease = Machine.timer().getTime();
+		}
+
+		double density() {
+			return (double) reservedBudget / relativeDeadline;
+		}
+
+		/**
+		 * Start the job of the period the specified time is in, if it has not
+		 * started yet. A job that has not ended by then has missed its
+		 * deadline.
+		 */
+		void release(long time) {
+			if (time < nextRelease)
+				return;
+
+			if (started && !done)
+				recordJob(true);
+
+			long start = nextRelease + (time - nextRelease) / period * period;
+
+			deadline = start + relativeDeadline;
+			nextRelease = start + period;
+			budget = reservedBudget;
+			started = true;
+			done = false;
+		}
+
+		/**
+		 * End the current job at the specified time.
+		 */
+		void complete(long time) {
+			if (!done)
+				recordJob(time > deadline);
+			done = true;
+		}
+
+		public int compareTo(Reservation other) {
+			if (deadline != other.deadline)
+				return (deadline < other.deadline) ? -1 : 1;
+			return Long.compare(sequence, other.sequence);
+		}
+
+		KThread thread;
+
+		long period, reservedBudget, relativeDeadline;
+
+		/** The absolute deadline of the current job, and its budget left. */
+		long deadline, budget;
+
+		/** The time the next period starts. */
+		long nextRelease;
+
+		/** <tt>true</tt> once a job has started, and once it has ended. */
+		boolean started = false, done = false;
+
+		/** The order in which threads were queued, to break ties. */
+		long sequence;
+	}
+
+	private Scheduler bestEffort;
+
+	private ReadyQueue readyQueue = null;
+
+	private HashMap<KThread, Reservation> reservations = new HashMap<KThread, Reservation>();
+
+	private double utilizationBound;
+
+	/** The total density of the accepted reservations. */
+	private double utilization = 0;
+
+	private long numArrivals = 0;
+
+	/** The jobs counted by this scheduler, and those that missed. */
+	private long numJobs = 0, numDeadlineMisses = 0;
+
+	/** <tt>false</tt> to keep the jobs out of the machine's statistics. */
+	private boolean reportJobs = true;
+}
@@ -151,4 +151,66 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Allocate the queue of threads that are ready to run. There is only one,
+	 * and it is created once, when threading starts. By default it is an
+	 * ordinary queue that does not transfer priority.
+	 * 
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
+	/**
+	 * Return the length of the time slice to give the specified thread when
+	 * it is given the processor. Interrupts must be disabled.
+	 * 
+	 * @param thread the thread being dispatched.
+	 * @return the length of the slice, in ticks, or 0 to let the alarm choose.
+	 */
+	public long getQuantum(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return 0;
+	}
+
+	/**
+	 * Called by the alarm when the specified thread, which is the current
+	 * thread, has used up its time slice and is about to be preempted.
+	 * Interrupts must be disabled.
+	 * 
+	 * @param thread the thread whose slice is over.
+	 */
+	public void quantumExpired(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Return the next time at which the scheduler needs a timer interrupt to
+	 * change its mind about the running thread, even if its time slice is not
+	 * over. Called with interrupts disabled when a thread is given the
+	 * processor.
+	 * 
+	 * @return the time, or <tt>Long.MAX_VALUE</tt> if there is none.
+	 */
+	public long nextEventTime() {
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Create threads for a self-test that hands them to the queues of a
+	 * scheduler directly. The threads are never forked.
+	 * 
+	 * @param name the name of the test, to name the threads after.
+	 * @param count the number of threads.
+	 * @return the new threads.
+	 */
+	protected static KThread[] newTestThreads(String name, int count) {
+		KThread[] threads = new KThread[count];
+		for (int i = 0; i < count; i++)
+			threads[i] = new KThread().setName(name + " " + i);
+
+		return threads;
+	}
 }
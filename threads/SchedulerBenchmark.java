@@ -0,0 +1,393 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A benchmark of the configured scheduler under synthetic workloads.
+ *
+ * <p>
+ * Each scenario named in <tt>SchedulerBenchmark.scenarios</tt>, separated by
+ * commas, forks <tt>SchedulerBenchmark.threads</tt> threads of one workload,
+ * or a quarter of each for <tt>mixed</tt>, and lets them run for
+ * <tt>SchedulerBenchmark.ticks</tt> ticks:
+ *
+ * <ul>
+ * <li><tt>cpu</tt>: threads that only compute.
+ * <li><tt>io</tt>: threads that compute briefly, then sleep on the alarm for
+ * a pseudo-random time, as if waiting for a device.
+ * <li><tt>lock</tt>: groups of threads that contend for a few slots guarded
+ * by a <tt>Lock</tt> and a <tt>Condition</tt>, and compute while they hold
+ * one.
+ * <li><tt>pipe</tt>: producers that compute items and pass them through a
+ * <tt>SynchList</tt> to consumers that compute on them.
+ * </ul>
+ *
+ * <p>
+ * Each workload of a scenario is reported as a line of CSV: its throughput
+ * in operations per 1000 ticks, the median, 99th percentile and largest
+ * number of ticks its threads waited in the ready queue before being
+ * dispatched, the number of times they were switched away from, and Jain's
+ * fairness index, from 1/<i>n</i> to 1, of the operations done and of the
+ * processor time charged to each thread. There are no more than
+ * <tt>TCB.maxThreads</tt> threads unless <tt>TCB.virtualThreads</tt> is set.
+ *
+ * <p>
+ * <tt>ThreadedKernel.selfTest()</tt> runs the benchmark when
+ * <tt>SchedulerBenchmark.scenarios</tt> is set.
+ */
+public class SchedulerBenchmark {
+	/**
+	 * Allocate a benchmark of the specified scenario.
+	 *
+	 * @param scenario the name of a workload, or <tt>mixed</tt>.
+	 */
+	private SchedulerBenchmark(String scenario) {
+		this.scenario = scenario;
+
+		if (scenario.equals("mixed")) {
+			workloads = new int[] { workloadCPU, workloadIO, workloadLock,
+					workloadPipe };
+		}
+		else {
+			int workload = Arrays.asList(workloadNames).indexOf(scenario);
+			Lib.assertTrue(workload >= 0, "unknown SchedulerBenchmark scenario "
+					+ scenario);
+			workloads = new int[] { workload };
+		}
+
+		for (int workload = 0; workload < numWorkloads; workload++)
+			latencies[workload] = new Samples();
+	}
+
+	/**
+	 * Run every scenario in <tt>SchedulerBenchmark.scenarios</tt>, and print
+	 * the results as CSV.
+	 */
+	public static void run() {
+		String list = Config.getString("SchedulerBenchmark.scenarios");
+		Lib.assertTrue(list != null);
+
+		System.out.println("scheduler,scenario,workload,threads,ticks,"
+				+ "operations,throughput,latency_p50,latency_p99,latency_max,"
+				+ "switches,fairness_operations,fairness_cpu");
+
+		for (String scenario : list.split(","))
+			new SchedulerBenchmark(scenario.trim()).runScenario();
+	}
+
+	private void runScenario() {
+		int numThreads = Config.getInteger("SchedulerBenchmark.threads", 200);
+		long duration = Config.getInteger("SchedulerBenchmark.ticks", 100000);
+		Lib.assertTrue(numThreads >= 2 * workloads.length && duration > 0);
+
+		for (int workload : workloads)
+			createWorkers(workload, numThreads / workloads.length);
+
+		// start every worker at the same time, without being preempted
+		boolean intStatus = Machine.interrupt().disable();
+
+		stopTime = Machine.timer().getTime() + duration;
+		KThread.addDispatchListener(listener);
+
+		for (Worker worker : workerList)
+			worker.thread.fork();
+
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < workerList.size(); i++)
+			done.P();
+
+		KThread.removeDispatchListener(listener);
+
+		for (int workload : workloads)
+			report(workload, duration);
+	}
+
+	/**
+	 * Create, but do not fork, the threads of a workload.
+	 */
+	private void createWorkers(int workload, int numThreads) {
+		switch (workload) {
+			case workloadLock:
+				SlotGroup group = null;
+				for (int i = 0; i < numThreads; i++) {
+					if (i % groupSize == 0)
+						group = new SlotGroup();
+					addWorker(workload, new LockWorker(group));
+				}
+				break;
+
+			case workloadPipe:
+				for (int i = 0; i + 1 < numThreads; i += 2) {
+					SynchList list = new SynchList();
+					addWorker(workload, new Producer(list));
+					addWorker(workload, new Consumer(list));
+				}
+				break;
+
+			default:
+				for (int i = 0; i < numThreads; i++)
+					addWorker(workload, new Worker());
+				break;
+		}
+	}
+
+	private void addWorker(int workload, Worker worker) {
+		worker.workload = workload;
+		worker.seed = workerList.size() * 7919 + 1;
+		worker.thread = new KThread(worker);
+		worker.thread.setName(workloadNames[workload] + " " + workerList.size());
+
+		workerList.add(worker);
+		workers.put(worker.thread, worker);
+	}
+
+	private void report(int workload, long duration) {
+		int numThreads = 0;
+		long operations = 0, switches = 0;
+		ArrayList<Long> work = new ArrayList<Long>();
+		ArrayList<Long> cpu = new ArrayList<Long>();
+
+		for (Worker worker : workerList) {
+			if (worker.workload != workload)
+				continue;
+
+			Account account = worker.thread.getAccount();
+
+			numThreads++;
+			operations += worker.operations;
+			switches += account.numSwitches;
+			work.add(worker.operations);
+			cpu.add(account.userTicks + account.kernelTicks);
+		}
+
+		Samples samples = latencies[workload];
+
+		System.out.println(ThreadedKernel.scheduler.getClass().getName() + ","
+				+ scenario + "," + workloadNames[workload] + "," + numThreads
+				+ "," + duration + "," + operations + ","
+				+ String.format("%.2f", 1000.0 * operations / duration) + ","
+				+ samples.percentile(50) + "," + samples.percentile(99) + ","
+				+ samples.percentile(100) + "," + switches + ","
+				+ String.format("%.4f", fairness(work)) + ","
+				+ String.format("%.4f", fairness(cpu)));
+	}
+
+	/**
+	 * Return Jain's fairness index of the specified amounts: the square of
+	 * their sum, over their number times the sum of their squares.
+	 */
+	private static double fairness(ArrayList<Long> amounts) {
+		double sum = 0, sumOfSquares = 0;
+		for (long amount : amounts) {
+			sum += amount;
+			sumOfSquares += (double) amount * amount;
+		}
+
+		if (sumOfSquares == 0)
+			return 1;
+
+		return sum * sum / (amounts.size() * sumOfSquares);
+	}
+
+	/**
+	 * Compute for the specified number of steps, each one enabling
+	 * interrupts once and so taking a kernel tick.
+	 */
+	private static void compute(int steps) {
+		for (int i = 0; i < steps; i++) {
+			boolean intStatus = Machine.interrupt().disable();
+			Machine.interrupt().restore(intStatus);
+		}
+	}
+
+	private boolean stopped() {
+		return Machine.timer().getTime() >= stopTime;
+	}
+
+	/**
+	 * A thread of the benchmark. By itself, one of the <tt>cpu</tt> or
+	 * <tt>io</tt> workloads.
+	 */
+	private class Worker implements Runnable {
+		public void run() {
+			work();
+			done.V();
+		}
+
+		void work() {
+			while (!stopped()) {
+				if (workload == workloadIO) {
+					compute(ioSteps);
+					seed = seed * 1103515245 + 12345;
+					ThreadedKernel.alarm.waitUntil(500 + (seed >>> 8) % 4500);
+				}
+				else {
+					compute(cpuSteps);
+				}
+				operations++;
+			}
+		}
+
+		int workload;
+
+		KThread thread;
+
+		/** The state of this thread's pseudo-random numbers. */
+		int seed;
+
+		long operations = 0;
+	}
+
+	/**
+	 * Some slots that a group of threads wait for.
+	 */
+	private class SlotGroup {
+		Lock lock = new Lock();
+
+		Condition slotFreed = new Condition(lock);
+
+		int numFree = numSlots;
+	}
+
+	private class LockWorker extends Worker {
+		LockWorker(SlotGroup group) {
+			this.group = group;
+		}
+
+		void work() {
+			while (!stopped()) {
+				group.lock.acquire();
+				while (group.numFree == 0)
+					group.slotFreed.sleep();
+				group.numFree--;
+				compute(1);
+				group.lock.release();
+
+				compute(lockSteps);
+
+				group.lock.acquire();
+				group.numFree++;
+				group.slotFreed.wake();
+				group.lock.release();
+
+				operations++;
+			}
+		}
+
+		private SlotGroup group;
+	}
+
+	private class Producer extends Worker {
+		Producer(SynchList list) {
+			this.list = list;
+		}
+
+		void work() {
+			while (!stopped()) {
+				compute(pipeSteps);
+				list.add(Long.valueOf(operations++));
+			}
+			list.add(endOfStream);
+		}
+
+		private SynchList list;
+	}
+
+	private class Consumer extends Worker {
+		Consumer(SynchList list) {
+			this.list = list;
+		}
+
+		void work() {
+			while (list.removeFirst() != endOfStream) {
+				compute(pipeSteps);
+				operations++;
+			}
+		}
+
+		private SynchList list;
+	}
+
+	/**
+	 * A growable list of samples.
+	 */
+	private static class Samples {
+		void add(long sample) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, 2 * size);
+			values[size++] = sample;
+			sorted = false;
+		}
+
+		/**
+		 * Return the smallest sample that is at least as large as the
+		 * specified percentage of the samples, or 0 if there are none.
+		 */
+		long percentile(int percent) {
+			if (size == 0)
+				return 0;
+
+			if (!sorted) {
+				Arrays.sort(values, 0, size);
+				sorted = true;
+			}
+
+			int rank = (int) (((long) size * percent + 99) / 100);
+			return values[Math.max(rank, 1) - 1];
+		}
+
+		private long[] values = new long[64];
+
+		private int size = 0;
+
+		private boolean sorted = true;
+	}
+
+	private String scenario;
+
+	/** The workloads this scenario runs. */
+	private int[] workloads;
+
+	/** The workers in the order they were created, and by thread. */
+	private ArrayList<Worker> workerList = new ArrayList<Worker>();
+
+	private HashMap<KThread, Worker> workers = new HashMap<KThread, Worker>();
+
+	/** Records the ready-queue latency of each dispatch of a worker. */
+	private KThread.DispatchListener listener = new KThread.DispatchListener() {
+		public void dispatched(KThread thread, long latency) {
+			Worker worker = workers.get(thread);
+			if (worker != null)
+				latencies[worker.workload].add(latency);
+		}
+	};
+
+	/** The ready-queue latencies of each workload's dispatches. */
+	private Samples[] latencies = new Samples[numWorkloads];
+
+	private Semaphore done = new Semaphore(0);
+
+	/** The time after which the workers start no more operations. */
+	private long stopTime;
+
+	private static final int workloadCPU = 0, workloadIO = 1,
+			workloadLock = 2, workloadPipe = 3, numWorkloads = 4;
+
+	private static final String[] workloadNames = { "cpu", "io", "lock",
+			"pipe" };
+
+	/** The steps of computing in each operation of each workload. */
+	private static final int cpuSteps = 20, ioSteps = 2, lockSteps = 5,
+			pipeSteps = 3;
+
+	/** The threads in a lock group, and the slots they share. */
+	private static final int groupSize = 10, numSlots = 2;
+
+	/** The item a producer adds to its list when it stops. */
+	private static final Object endOfStream = new Object();
+}
@@ -41,14 +41,42 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-	 * autograder never calls this method, so it is safe to put additional tests
-	 * here.
+	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. If
+	 * <tt>ThreadedKernel.fullSelfTest</tt> is set, also test the
+	 * <tt>Alarm</tt> and <tt>Condition2</tt> classes and the schedulers, which
+	 * takes tens of thousands of ticks; the schedulers that need
+	 * <tt>Alarm.adaptiveQuantum</tt> are only tested if it is set. Run the
+	 * benchmarks of the classes whose <tt>benchmark</tt> key is set, and the
+	 * scheduler benchmark if <tt>SchedulerBenchmark.scenarios</tt> is set.
+	 * Note that the autograder never calls this method, so it is safe to put
+	 * additional tests here.
 	 */
 	public void selfTest() {
 		KThread.selfTest();
 		Semaphore.selfTest();
 		SynchList.selfTest();
+		if (Config.getBoolean("ThreadedKernel.fullSelfTest", false)) {
+			Alarm.selfTest();
+			Condition2.selfTest();
+			PriorityScheduler.selfTest();
+			LotteryScheduler.selfTest();
+			FairScheduler.selfTest();
+
+			// these need the timer in one-shot mode
+			if (Alarm.adaptiveQuantum()) {
+				MLFQScheduler.selfTest();
+				RealTimeScheduler.selfTest();
+				QuotaScheduler.selfTest();
+			}
+		}
+		if (Config.getBoolean("Alarm.benchmark", false))
+			Alarm.benchmark();
+		if (Config.getBoolean("PriorityScheduler.benchmark", false))
+			PriorityScheduler.benchmark();
+		if (Config.getBoolean("LotteryScheduler.benchmark", false))
+			LotteryScheduler.benchmark();
+		if (Config.getString("SchedulerBenchmark.scenarios") != null)
+			SchedulerBenchmark.run();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
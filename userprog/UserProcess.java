@@ -86,7 +86,16 @@ public class UserProcess {
 		if (!load(name, args))
 			return false;
 
+		// a process not exec'd by another starts a group of its own
+		if (group == null) {
+			group = new Account();
+			group.setQuota(Config.getInteger("UserProcess.cpuQuota", 0),
+					Config.getInteger("UserProcess.cpuPeriod", 10000));
+		}
+		account.setParent(group);
+
 		thread = new UThread(this);
+		thread.getAccount().setParent(account);
 		thread.setName(name).fork();
 
 		return true;
@@ -105,6 +114,7 @@ public class UserProcess {
 	 */
 	public void restoreState() {
 		Machine.processor().setPageTable(pageTable);
+		Machine.processor().setASID(pid);
 	}
 
 	/**
@@ -166,7 +176,7 @@ public class UserProcess {
 				&& offset + length <= data.length);
 
 		int amount = 0;
-		byte[] memory = Machine.processor().getMemory();
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 
 		if (vaddr < 0 || vaddr >= pageSize * numPages)
 			return 0;
@@ -181,10 +191,10 @@ public class UserProcess {
 
 		// read Head
 		if (offsetInPage + length <= pageSize) {
-			System.arraycopy(memory, startAt, data, offset, length);
+			memory.read(startAt, data, offset, length);
 			return length;
 		} else {
-			System.arraycopy(memory, startAt, data, offset, (pageSize - offsetInPage));
+			memory.read(startAt, data, offset, (pageSize - offsetInPage));
 			amount += pageSize - offsetInPage;
 		}
 
@@ -197,7 +207,7 @@ public class UserProcess {
 				return amount;
 			ppn = pageTable[i].ppn;
 			int paddr = Processor.makeAddress(ppn, 0);
-			System.arraycopy(memory, paddr, data, offset + amount, pageSize);
+			memory.read(paddr, data, offset + amount, pageSize);
 			amount += pageSize;
 		}
 
@@ -211,7 +221,7 @@ public class UserProcess {
 			return -1; // for debug, this should not happen
 		ppn = pageTable[i].ppn;
 		int paddr = Processor.makeAddress(ppn, 0);
-		System.arraycopy(memory, paddr, data, offset + amount, dataLeft);
+		memory.read(paddr, data, offset + amount, dataLeft);
 		amount += dataLeft;
 		return amount;
 	}
@@ -246,7 +256,7 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 		// Do we transfer part of data or just return 0 when vaddr + length >= pageSize
 		// * numPages? A: check in handleRead
 		if (vaddr < 0 || vaddr >= pageSize * numPages)
@@ -268,10 +278,10 @@ public class UserProcess {
 		// write Head
 		int amount = 0;
 		if (offsetInPage + length <= pageSize) {
-			System.arraycopy(data, offset, memory, startAt, length);
+			memory.write(startAt, data, offset, length);
 			return length;
 		} else {
-			System.arraycopy(data, offset, memory, startAt, (pageSize - offsetInPage));
+			memory.write(startAt, data, offset, (pageSize - offsetInPage));
 			amount += pageSize - offsetInPage;
 		}
 
@@ -286,7 +296,7 @@ public class UserProcess {
 				return amount;
 			ppn = pageTable[i].ppn;
 			int paddr = Processor.makeAddress(ppn, 0);
-			System.arraycopy(data, offset + amount, memory, paddr, pageSize);
+			memory.write(paddr, data, offset + amount, pageSize);
 			amount += pageSize;
 		}
 
@@ -302,7 +312,7 @@ public class UserProcess {
 			return -1; // for debug, this should not happen
 		ppn = pageTable[i].ppn;
 		int paddr = Processor.makeAddress(ppn, 0);
-		System.arraycopy(data, offset + amount, memory, paddr, dataLeft);
+		memory.write(paddr, data, offset + amount, dataLeft);
 		amount += dataLeft;
 		return amount;
 	}
@@ -347,6 +357,9 @@ public class UserProcess {
 			// System.out.println(numPages);
 		}
 
+		if (Machine.profiler() != null)
+			Machine.profiler().addProgram(pid, name, coff);
+
 		// make sure the argv array will fit in one page
 		byte[][] argv = new byte[args.length][];
 		int argsSize = 0;
@@ -690,6 +703,8 @@ public class UserProcess {
 		Lib.debug(dbgProcess, "UserProcess.handleExit (" + status + ")");
 		// for now, unconditionally terminate with just one process
 
+		Lib.debug(dbgProcess, "UserProcess " + pid + " used: " + account);
+
 		unloadSections(); // free all physical pages
 		// close all opened files
 		for (int i = 0; i < fdTable.length; i++) {
@@ -773,6 +788,7 @@ public class UserProcess {
 		}
 
 		UserProcess child = newUserProcess();
+		child.group = group;
 		if (child.execute(fileName, argvStr)) {
 			// child starts executing successfully.
 			this.children_by_pid.put(child.pid, child);
@@ -929,6 +945,7 @@ public class UserProcess {
 
 		switch (cause) {
 			case Processor.exceptionSyscall:
+				thread.getAccount().countSyscall();
 				int result = handleSyscall(processor.readRegister(Processor.regV0),
 						processor.readRegister(Processor.regA0),
 						processor.readRegister(Processor.regA1),
@@ -941,6 +958,7 @@ public class UserProcess {
 			default:
 				Lib.debug(dbgProcess, "Unexpected exception: "
 						+ Processor.exceptionNames[cause]);
+				Lib.debug(dbgProcess, "UserProcess " + pid + " used: " + account);
 
 				unloadSections(); // free all physical pages
 				// close all opened files
@@ -988,6 +1006,15 @@ public class UserProcess {
 	/** The thread that executes the user-level program. */
 	protected UThread thread;
 
+	/** The processor time and events charged to this process's threads. */
+	protected Account account = new Account();
+
+	/**
+	 * The group this process shares a CPU quota with: the process it was
+	 * exec'd by, and the processes they exec.
+	 */
+	private Account group = null;
+
 	// First 2 are std in and out
 	private OpenFile[] fdTable = new OpenFile[16];
 
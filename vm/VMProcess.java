@@ -80,6 +80,7 @@ public class VMProcess extends UserProcess {
 				owner.pageTable[vpn].used = false;
 			} else {
 				owner.pageTable[vpn].valid = false;
+				Machine.processor().invalidateTranslations();
 				if(!owner.pageTable[vpn].dirty && owner.pageTable[vpn].vpn != -1){
 					return ppn;
 				}
@@ -88,10 +89,10 @@ public class VMProcess extends UserProcess {
 					spn = VMKernel.allocateDiskPage();
 					owner.pageTable[vpn].vpn = spn;
 				}
-				byte[] memory = Machine.processor().getMemory();
+				PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 				VMKernel.pinTable[ppn] += 1;
 				VMKernel.vmMutex.release();
-				int res = VMKernel.swapFile.write(spn * pageSize, memory, ppn * pageSize, pageSize);
+				int res = memory.writeFile(VMKernel.swapFile, spn * pageSize, ppn * pageSize, pageSize);
 				VMKernel.vmMutex.acquire();
 				VMKernel.pinTable[ppn] -= 1;
 				Lib.assertTrue(VMKernel.pinTable[ppn] >= 0);
@@ -141,7 +142,7 @@ public class VMProcess extends UserProcess {
 				&& offset + length <= data.length);
 
 		int amount = 0;
-		byte[] memory = Machine.processor().getMemory();
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 
 		if (vaddr < 0 || vaddr >= pageSize * numPages) {
 			return 0;
@@ -164,10 +165,10 @@ public class VMProcess extends UserProcess {
 
 		// read Head
 		if (offsetInPage + length <= pageSize) {
-			System.arraycopy(memory, startAt, data, offset, length);
+			memory.read(startAt, data, offset, length);
 			return length;
 		} else {
-			System.arraycopy(memory, startAt, data, offset, (pageSize - offsetInPage));
+			memory.read(startAt, data, offset, (pageSize - offsetInPage));
 			amount += pageSize - offsetInPage;
 		}
 
@@ -186,7 +187,7 @@ public class VMProcess extends UserProcess {
 			}
 			ppn = pageTable[i].ppn;
 			int paddr = Processor.makeAddress(ppn, 0);
-			System.arraycopy(memory, paddr, data, offset + amount, pageSize);
+			memory.read(paddr, data, offset + amount, pageSize);
 			amount += pageSize;
 		}
 
@@ -209,7 +210,7 @@ public class VMProcess extends UserProcess {
 		}
 		ppn = pageTable[i].ppn;
 		int paddr = Processor.makeAddress(ppn, 0);
-		System.arraycopy(memory, paddr, data, offset + amount, dataLeft);
+		memory.read(paddr, data, offset + amount, dataLeft);
 		amount += dataLeft;
 		return amount;
 	}
@@ -219,7 +220,7 @@ public class VMProcess extends UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 		// Do we transfer part of data or just return 0 when vaddr + length >= pageSize
 		// * numPages? A: check in handleRead
 		if (vaddr < 0 || vaddr >= pageSize * numPages) {
@@ -248,10 +249,10 @@ public class VMProcess extends UserProcess {
 		// write Head
 		int amount = 0;
 		if (offsetInPage + length <= pageSize) {
-			System.arraycopy(data, offset, memory, startAt, length);
+			memory.write(startAt, data, offset, length);
 			return length;
 		} else {
-			System.arraycopy(data, offset, memory, startAt, (pageSize - offsetInPage));
+			memory.write(startAt, data, offset, (pageSize - offsetInPage));
 			amount += pageSize - offsetInPage;
 		}
 
@@ -273,7 +274,7 @@ public class VMProcess extends UserProcess {
 			pageTable[i].dirty = true;
 			ppn = pageTable[i].ppn;
 			int paddr = Processor.makeAddress(ppn, 0);
-			System.arraycopy(data, offset + amount, memory, paddr, pageSize);
+			memory.write(paddr, data, offset + amount, pageSize);
 			amount += pageSize;
 		}
 
@@ -297,7 +298,7 @@ public class VMProcess extends UserProcess {
 		pageTable[i].dirty = true;
 		ppn = pageTable[i].ppn;
 		int paddr = Processor.makeAddress(ppn, 0);
-		System.arraycopy(data, offset + amount, memory, paddr, dataLeft);
+		memory.write(paddr, data, offset + amount, dataLeft);
 		amount += dataLeft;
 		return amount;
 	}
@@ -311,11 +312,11 @@ public class VMProcess extends UserProcess {
 	}
 
 	protected void loadFromDisk(int spn, int ppn) {
-		byte[] memory = Machine.processor().getMemory();
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 		// use read() interface of StubOpenFile to read from swap file to memory at
 		VMKernel.pinTable[ppn] += 1;
 		VMKernel.vmMutex.release();
-		VMKernel.swapFile.read(spn * pageSize, memory, ppn * pageSize, pageSize);
+		memory.readFile(VMKernel.swapFile, spn * pageSize, ppn * pageSize, pageSize);
 		VMKernel.vmMutex.acquire();
 		VMKernel.pinTable[ppn] -= 1;
 		Lib.assertTrue(VMKernel.pinTable[ppn] >= 0);
@@ -390,10 +391,8 @@ public class VMProcess extends UserProcess {
 		invertedPageTable[ppn].vpn = vpn;
 		VMKernel.ppnToProcessTable[ppn] = this;
 		if (spn == -1) {
-			byte[] memory = Machine.processor().getMemory();
-			for (int i = 0; i < pageSize; i++) {
-				memory[ppn * pageSize + i] = (byte) 0;
-			}
+			PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+			memory.fill(ppn * pageSize, pageSize, (byte) 0);
 		} else {
 			loadFromDisk(spn, ppn);
 		}